@@ -1,13 +1,25 @@
 package com.networking.chatclient;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.networking.chatclient.ClientProtocol.GroupAction;
 import com.networking.chatclient.ClientProtocol.MessageAction;
@@ -23,48 +35,135 @@ public class ChatClient {
      * Structure for containing a message. All properties are immutable except
      * content.
      * Content is not immutable so that it can be loaded at a later time.
+     *
+     * Labels are kept compact: the username is the instance shared through
+     * the connection's SymbolTable, and the post date is parsed once into
+     * microseconds (the text is only kept if it could not be parsed).
+     *
+     * A group keeps its labels in its MessageLabels columns, not as Message
+     * objects; Group.getMessage builds a Message from a row when asked.
+     *
+     * The content itself is kept in the client's ContentCache, as UTF-8 outside
+     * the heap. A Message that was delivered with its content (by
+     * retrieveMessageAsync, or with the SEND_MESSAGE_CONTENT that loaded it)
+     * keeps it; any other Message decodes it from the cache when getContent is
+     * called. getContent never waits for the server; getContentAsync loads
+     * content that was dropped from the cache again.
      */
 
     public class Message {
         public final int groupId;
         public final int messageId;
-        public final String username;
-        public final String postDate;
-        public final String subject;
-        private String content = null;
-        private boolean loaded = false;
+        private final String username;
+        private final long postTime; // Microseconds since the epoch, unless postFormat is PostDate.UNPARSED
+        private final byte postFormat;
+        private final String unparsedPostDate; // Only set if the post date could not be parsed
+        private final String subject;
+        private volatile String content; // Set if the message was delivered with its content
 
         public Message(int groupId, int messageId, String username, String postDate, String subject) {
             this.groupId = groupId;
             this.messageId = messageId;
+            this.username = usernames.canonical(username);
+            long stamp = postDates.parse(postDate);
+            this.postFormat = PostDate.getFormat(stamp);
+            this.postTime = (postFormat != PostDate.UNPARSED) ? PostDate.getMicros(stamp) : 0;
+            this.unparsedPostDate = (postFormat != PostDate.UNPARSED) ? null : postDate;
+            this.subject = subject;
+        }
+
+        private Message(int groupId, int messageId, String username, long postTime, byte postFormat,
+                String unparsedPostDate, String subject) {
+            this.groupId = groupId;
+            this.messageId = messageId;
             this.username = username;
-            this.postDate = postDate;
+            this.postTime = postTime;
+            this.postFormat = postFormat;
+            this.unparsedPostDate = unparsedPostDate;
             this.subject = subject;
         }
 
-        public synchronized void setContent(String content) {
+        public String getUsername() {
+            return username;
+        }
+
+        /*
+         * The post date as the server sent it.
+         */
+        public String getPostDate() {
+            return (postFormat != PostDate.UNPARSED) ? PostDate.format(postTime, postFormat) : unparsedPostDate;
+        }
+
+        /*
+         * The post date in microseconds since the epoch (reading the server's
+         * time as UTC), or Long.MIN_VALUE if it could not be parsed.
+         */
+        public long getPostTime() {
+            return (postFormat != PostDate.UNPARSED) ? postTime : Long.MIN_VALUE;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public void setContent(String content) {
+            contentCache.put(groupId, messageId, content);
             this.content = content;
-            this.loaded = true;
+
+            Group g = state.getGroup(groupId);
+            if (g != null)
+                g.messages.setLoaded(messageId);
+        }
+
+        /*
+         * Returns null if the content is not loaded: it never was, or it was
+         * dropped from the cache since. getContentAsync loads it again.
+         */
+        public String getContent() {
+            String content = this.content;
+            return (content != null) ? content : contentCache.get(groupId, messageId);
         }
 
-        public synchronized String getContent() {
-            return content;
+        /*
+         * Completes with the content, loading it from the message store or
+         * the server if it is not loaded, or with null if it could not be
+         * retrieved.
+         */
+        public CompletableFuture<String> getContentAsync() {
+            String content = getContent();
+            if (content != null)
+                return CompletableFuture.completedFuture(content);
+
+            return retrieveMessageAsync(groupId, messageId).thenApply((m) -> (m != null) ? m.getContent() : null);
         }
 
+        /*
+         * Like getContentAsync, but waits for the content.
+         */
+        public String retrieveContent() {
+            return await(getContentAsync(), null);
+        }
+
+        /*
+         * Whether getContent would return the content.
+         */
         public boolean isLoaded() {
-            return loaded;
+            return content != null || contentCache.contains(groupId, messageId);
         }
     }
 
     /*
      * Structure for containing a group.
+     *
+     * The user list is never changed in place: every change replaces it with an
+     * updated copy, so it can be read (and iterated) without locking.
      */
 
     public class Group {
         public final int id;
-        public String name;
-        public final ArrayList<String> users = new ArrayList<String>();
-        public final HashMap<Integer, Message> messages = new HashMap<Integer, Message>();
+        public volatile String name;
+        private volatile List<String> users = Collections.emptyList();
+        public final MessageLabels messages = new MessageLabels(usernames, postDates);
 
         public Group(int id) {
             this.id = id;
@@ -75,8 +174,46 @@ public class ChatClient {
             this.name = name;
         }
 
+        /*
+         * The users in the group. The list cannot be modified.
+         */
+        public List<String> getUsers() {
+            return users;
+        }
+
+        /*
+         * Builds the message from its label, or returns null if there is no
+         * label for it.
+         */
+        public Message getMessage(int messageId) {
+            synchronized (messages) {
+                int row = messages.rowOf(messageId);
+                if (row < 0)
+                    return null;
+
+                return new Message(id, messageId, messages.getUsername(row), messages.getPostTimeColumn(row),
+                        messages.getPostFormat(row), messages.getUnparsedPostDate(row), messages.getSubject(row));
+            }
+        }
+
+        synchronized void setUsers(List<String> usernames) {
+            users = Collections.unmodifiableList(new ArrayList<String>(usernames));
+        }
+
+        synchronized void addUser(String username) {
+            ArrayList<String> updated = new ArrayList<String>(users);
+            updated.add(username);
+            users = Collections.unmodifiableList(updated);
+        }
+
+        synchronized void removeUser(String username) {
+            ArrayList<String> updated = new ArrayList<String>(users);
+            if (updated.remove(username))
+                users = Collections.unmodifiableList(updated);
+        }
+
         public String toString() {
-            return name;
+            return (name != null) ? name : "Group " + id;
         }
     }
 
@@ -141,18 +278,66 @@ public class ChatClient {
      * State variables
      */
 
-    Socket socket;
-    DataOutputStream outputStream;
+    SocketChannel channel;
+    Socket socket; // The channel's socket
+    PacketWriter packetWriter; // Sends packets through the channel
+    FrameDecoder frameDecoder; // Splits the bytes read from the channel into frames
+    private CompletableFuture<Boolean> framingHandshake; // Completes with whether binary framing was accepted
+    private CompletableFuture<Void> closeFuture; // Completes once the connection is closed
+
+    private EventLoopGroup eventLoopGroup; // If set, used instead of responseHandlerThread
+    private PacketDispatcher dispatcher; // Runs handleResponse; the shared default if null
+    private DispatchLanes dispatchLanes; // Keeps each group's packets in order on the dispatcher
+    private int dispatchLaneCount = DispatchLanes.DEFAULT_LANE_COUNT;
+
+    private InboundLimiter inboundLimiter; // Bounds the packets waiting in dispatchLanes
+    private int inboundCapacity = InboundLimiter.DEFAULT_CAPACITY;
+    private InboundLimiter.OverloadPolicy overloadPolicy = InboundLimiter.OverloadPolicy.BLOCK;
+    private final Set<Integer> staleUserLists = ConcurrentHashMap.newKeySet(); // Groups whose notifications were
+                                                                             // coalesced into a user list request
+    private final AtomicLong unknownCommands = new AtomicLong(); // Frames whose command is not a ServerCommand
+
+    static final int NO_GROUP = Integer.MIN_VALUE;
+
+    static final long FRAMING_HANDSHAKE_TIMEOUT = 2000;
+    static final long DISCONNECT_TIMEOUT = 5000;
+    private boolean binaryFramingEnabled = false;
+
+    private volatile PayloadCompressor compressor; // Set if the server accepted compression
+    private boolean compressionEnabled = false;
+    private int compressionThreshold = PayloadCompressor.DEFAULT_THRESHOLD;
+    private byte[] compressionDictionary = null;
+
+    private PacketWriter.FlushPolicy flushPolicy = PacketWriter.FlushPolicy.IMMEDIATE;
+    private long lingerMillis = PacketWriter.DEFAULT_LINGER_MILLIS;
+
+    final PendingRequests pendingRequests = new PendingRequests(); // Requests waiting for a response
+    private long requestTimeoutMillis = PendingRequests.DEFAULT_TIMEOUT_MILLIS;
+
+    static final int DEFAULT_RETRIEVE_WINDOW = 64;
+    private int retrieveWindow = DEFAULT_RETRIEVE_WINDOW; // Most RETRIEVE requests retrieveMessages keeps in flight
 
     Thread responseHandlerThread; // The thread that will listen to the server
     Thread interfaceThread; // The thread that will run the interface and send messages to the server
 
-    private boolean joined; // Whether the user has joined the server
-    private String username; // The user's username
-    private ArrayList<Integer> userGroups = new ArrayList<Integer>(); // A list of the ids that the user is in
-    private HashMap<Integer, Group> groups = new HashMap<Integer, Group>(); // A hashmap of all the information known
-                                                                            // about each
-    // group.
+    private volatile boolean joined; // Whether the user has joined the server
+    private volatile String username; // The user's username
+    private final ClientState state = new ClientState(); // All the information known about each group
+    private final GroupDirectory groupDirectory = new GroupDirectory(state, this::fetchGroups);
+    private final ContentCache contentCache = new ContentCache(); // The content of every loaded message
+    private volatile SymbolTable usernames = new SymbolTable(); // Shares username strings between labels
+    private volatile PostDate postDates = new PostDate(); // Parses post dates, trying this server's format first
+    private Path messageStoreDirectory; // Where each server's MessageStore is kept, or null to not keep one
+    private volatile MessageStore messageStore; // The current server's saved labels and content
+    private final ContentPrefetcher prefetcher = new ContentPrefetcher(this); // Loads new messages' content early
+
+    public ChatClient() {
+        contentCache.setEvictionListener((groupId, messageId) -> {
+            Group g = state.getGroup(groupId);
+            if (g != null)
+                g.messages.clearLoaded(messageId);
+        });
+    }
 
     /*
      * The main line of execution.
@@ -184,66 +369,288 @@ public class ChatClient {
     }
 
     /*
-     * Connects to the server, begins the response handler thread.
+     * Connects to the server, begins the response handler thread (or registers
+     * with the event loop group, if one was set).
+     *
+     * If binary framing is enabled, asks the server to switch to it before
+     * returning. Servers that do not support it answer with BAD_MESSAGE, and
+     * the connection stays in text mode. If the server does not answer within
+     * FRAMING_HANDSHAKE_TIMEOUT, the connection is closed and IOException is
+     * thrown.
      */
     public void connect(String host, int port) throws UnknownHostException, IOException {
-        socket = new Socket(host, port);
-        outputStream = new DataOutputStream(socket.getOutputStream());
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved())
+            throw new UnknownHostException(host);
+
+        channel = SocketChannel.open(address);
+        socket = channel.socket();
+        packetWriter = new PacketWriter(channel, flushPolicy, lingerMillis);
+        frameDecoder = new FrameDecoder();
+        dispatchLanes = new DispatchLanes(getDispatcher(), dispatchLaneCount);
+        inboundLimiter = new InboundLimiter(inboundCapacity, overloadPolicy);
+        staleUserLists.clear();
+        framingHandshake = binaryFramingEnabled ? new CompletableFuture<Boolean>() : null;
+        compressor = null;
+        closeFuture = new CompletableFuture<Void>();
+        usernames = new SymbolTable();
+        postDates = new PostDate();
+        openMessageStore(host, port);
+
+        if (eventLoopGroup != null) {
+            eventLoopGroup.register(channel, frameDecoder, this::handleFrame, packetWriter, this::connectionClosed,
+                    inboundLimiter);
+        } else {
+            responseHandlerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (frameDecoder.readFrom(channel, ChatClient.this::handleFrame)) {
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Socket Reading Failed");
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(); // A bug in handling a frame, the connection cannot go on
+                    } finally {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+
+                        connectionClosed();
+                    }
+                }
+            });
 
-        responseHandlerThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    InputStream is = socket.getInputStream();
-                    Scanner scanner = new Scanner(is);
-                    scanner.useDelimiter("\0");
+            responseHandlerThread.start();
+        }
+
+        if (framingHandshake != null)
+            negotiateFraming();
+    }
+
+    /*
+     * Opens the store for this server, if a store directory was set. The
+     * client works without one if it cannot be opened.
+     */
+    private void openMessageStore(String host, int port) {
+        closeMessageStore();
+
+        if (messageStoreDirectory == null)
+            return;
+
+        String server = host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port;
+        try {
+            messageStore = MessageStore.open(messageStoreDirectory.resolve(server));
+        } catch (IOException e) {
+            System.out.println("Could not open the message store : " + e.getMessage());
+        }
+    }
+
+    private void closeMessageStore() {
+        MessageStore store = messageStore;
+        messageStore = null;
+
+        if (store == null)
+            return;
+
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.out.println("Could not close the message store : " + e.getMessage());
+        }
+    }
+
+    /*
+     * Called once the server closes the connection (or reading from it fails).
+     */
+    private void connectionClosed() {
+        packetWriter.close();
+        pendingRequests.failAll(new IOException("Connection closed"));
 
-                    while (scanner.hasNext()) {
-                        String message = scanner.next();
+        PayloadCompressor compressor = this.compressor;
+        if (compressor != null)
+            compressor.close();
 
-                        if (message.equalsIgnoreCase(""))
-                            continue;
+        closeFuture.complete(null);
+    }
 
-                        final ProtocolPacket packet = ServerProtocol.parseResponse(message);
+    /*
+     * Called by the response handler thread for every frame read from the
+     * socket. The buffer is only valid during this call.
+     */
+    void handleFrame(ByteBuffer buffer) {
+        final ResponseFrame frame;
+        try {
+            frame = ServerProtocol.parseFrame(buffer, frameDecoder.getMode(), compressor);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid Server Packet Received : " + e.getMessage());
+            return;
+        }
 
-                        (new Thread(() -> {
-                            handleResponse(packet);
-                        })).start();
+        final ServerCommand command = getServerCommand(frame);
+        if (command == null)
+            return;
+
+        // The framing handshake has to be finished before the next frame is read
+        if (framingHandshake != null && !framingHandshake.isDone()) {
+            if (command == ServerCommand.FRAMING_ACK || command == ServerCommand.BAD_MESSAGE) {
+                // An acknowledgement without a mode is malformed, and taken as a rejection
+                boolean accepted = command == ServerCommand.FRAMING_ACK && frame.getParameterCount() >= 1
+                        && frame.getParameter(0).equals(ClientProtocol.FramingMode.BINARY.name());
+
+                if (accepted) {
+                    frameDecoder.setMode(ClientProtocol.FramingMode.BINARY);
+                    packetWriter.setFramingMode(ClientProtocol.FramingMode.BINARY);
+
+                    if (compressionEnabled && frame.getParameterCount() > 1
+                            && frame.getParameter(1).equals(ClientProtocol.DEFLATE)) {
+                        compressor = new PayloadCompressor(compressionThreshold, compressionDictionary);
+                        packetWriter.setCompressor(compressor);
                     }
+                }
 
-                    scanner.close();
+                framingHandshake.complete(accepted);
+                return;
+            }
+        }
+
+        int groupId = getDispatchGroupId(command, frame);
+
+        // A notification that a request is waiting for (such as our own leave) is never dropped
+        boolean notification = (command == ServerCommand.USER_JOIN_NOTIF || command == ServerCommand.USER_LEAVE_NOTIF)
+                && !pendingRequests.isPending(command, groupId, PendingRequests.NO_ID);
+
+        switch (inboundLimiter.admit(notification)) {
+            case DROPPED:
+                if (inboundLimiter.getPolicy() == InboundLimiter.OverloadPolicy.COALESCE_NOTIFICATIONS
+                        && groupId != NO_GROUP && staleUserLists.add(groupId)) {
+                    ClientProtocol.createGroupPacket(GroupAction.USERS, groupId).send(packetWriter);
+                }
+                return;
+            case OVERLOADED:
+                if (!channel.isOpen())
+                    return; // Already closed, the rest of what was read is ignored
+
+                System.out.println("Too many packets waiting to be handled, closing the connection");
+                try {
+                    channel.close();
                 } catch (IOException e) {
-                    System.out.println("Socket Reading Failed");
+                    e.printStackTrace();
                 }
+                connectionClosed();
+                return;
+            default:
+                break;
+        }
 
+        Runnable task = () -> {
+            try {
+                handleResponse(frame, command);
+            } finally {
+                inboundLimiter.release();
             }
-        });
+        };
+
+        if (groupId != NO_GROUP) {
+            dispatchLanes.dispatch(groupId, task);
+        } else {
+            dispatchLanes.dispatchBarrier(task);
+        }
+    }
+
+    /*
+     * Returns the group a packet is about, so packets for the same group can be
+     * handled in order, or NO_GROUP if it has to be handled on its own.
+     */
+    private static int getDispatchGroupId(ServerCommand command, ResponseFrame frame) {
+        switch (command) {
+            case USER_JOIN_NOTIF:
+            case USER_LEAVE_NOTIF:
+            case SEND_MESSAGE_LABEL:
+            case SEND_USER_LIST:
+            case SEND_MESSAGE_CONTENT:
+                if (frame.getParameterCount() < 1)
+                    return NO_GROUP;
+
+                try {
+                    return frame.getIntParameter(0);
+                } catch (NumberFormatException e) {
+                    return NO_GROUP; // handleResponse will fail on it alone
+                }
+            default:
+                return NO_GROUP;
+        }
+    }
+
+    /*
+     * Sends the FRAMING request and waits for the response handler thread to
+     * get the answer. Nothing else is sent until then. An answer that came
+     * after other packets would switch the framing under them, so if none
+     * comes in time the connection is closed.
+     */
+    private void negotiateFraming() throws IOException {
+        ClientProtocol.createFramingPacket(ClientProtocol.FramingMode.BINARY, compressionEnabled).send(packetWriter);
+        packetWriter.flush();
 
-        responseHandlerThread.start();
+        try {
+            framingHandshake.get(FRAMING_HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+            return;
+        } catch (TimeoutException e) {
+            System.out.println("The server did not answer the framing request, closing the connection");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        framingHandshake.complete(false);
+        channel.close();
+        connectionClosed();
+        throw new IOException("Framing handshake did not finish");
     }
 
     /*
      * Handles a response packet.
      */
-    public synchronized void handleResponse(ProtocolPacket packet) {
+    public void handleResponse(ProtocolPacket packet) {
+        handleResponse(ResponseFrame.fromPacket(packet));
+    }
 
-        ServerCommand command = ServerProtocol.getServerCommand(packet);
+    /*
+     * Handles a response frame.
+     */
+    public void handleResponse(ResponseFrame frame) {
+        ServerCommand command = getServerCommand(frame);
+        if (command != null)
+            handleResponse(frame, command);
+    }
+
+    /*
+     * Looks up the frame's command, counting it if it is unknown.
+     */
+    private ServerCommand getServerCommand(ResponseFrame frame) {
+        ServerCommand command = ServerProtocol.getServerCommand(frame);
+        if (command == null)
+            unknownCommands.incrementAndGet();
+
+        return command;
+    }
+
+    private void handleResponse(ResponseFrame frame, ServerCommand command) {
 
         // Make sure the packet is valid
-        if (command == null) {
-            System.out.println("Invalid Server Packet Received : Invalid Command");
-            System.out.println("Command: " + packet.command);
-            return;
-        } else if (packet.parameters.size() < command.minParameters) {
+        if (frame.getParameterCount() < command.minParameters) {
             System.out.println("Invalid Server Packet Received : Too few parameter");
-            System.out.println("Command: " + packet.command);
+            System.out.println("Command: " + frame.getCommand());
             System.out.println(
-                    "Expected " + command.minParameters + " parameters, received " + packet.parameters.size() + ".");
+                    "Expected " + command.minParameters + " parameters, received " + frame.getParameterCount() + ".");
             return;
         } else if (!joined && !(command == ServerCommand.BAD_MESSAGE || command == ServerCommand.VERIFY_USERNAME)) {
             System.out.println(
                     "Invalid Server Packet Received : Received packet other than VERIFY_USERNAME or BAD_MESSAGE before joining server");
-            System.out.println("Command: " + packet.command);
+            System.out.println("Command: " + frame.getCommand());
             return;
         }
 
@@ -252,33 +659,37 @@ public class ChatClient {
             case BAD_MESSAGE:
                 System.out.println("Something went wrong");
                 return;
+            case FRAMING_ACK:
+                return; // Handled by handleFrame
             case SEND_GROUPS_LIST: {
-                String[] names = packet.parameters.get(0).split(",");
-                String[] ids = packet.parameters.get(1).split(",");
+                String[] names = frame.getParameter(0).split(",");
+                String[] ids = frame.getParameter(1).split(",");
 
                 for (int i = 0; i < ids.length; i++) {
                     int id = Integer.parseInt(ids[i]);
-                    if (!groups.containsKey(id)) {
-                        groups.put(id, new Group(Integer.parseInt(ids[i]), names[i]));
-                    }
+                    Group g = state.addGroup(new Group(id, names[i]));
+                    state.nameGroup(g, names[i]); // In case it was a placeholder
                 }
 
                 receiveGroupListEvent.invoke(new ReceiveGroupListEventPayload());
+                pendingRequests.complete(command, PendingRequests.NO_ID, PendingRequests.NO_ID, state.getGroupList());
                 return;
             }
             case SEND_MESSAGE_CONTENT: {
-                int groupId = Integer.parseInt(packet.parameters.get(0));
-                int messageId = Integer.parseInt(packet.parameters.get(1));
-                String content = packet.parameters.get(2);
-                boolean validId = (packet.parameters.get(3).equals("1"));
+                int groupId = frame.getIntParameter(0);
+                int messageId = frame.getIntParameter(1);
+                String content = frame.getParameter(2);
+                boolean validId = frame.getFlagParameter(3);
 
                 Message m = null;
 
                 if (validId) {
                     m = getSavedMessage(groupId, messageId);
 
-                    if (m != null)
+                    if (m != null) {
                         m.setContent(content);
+                        saveContent(m, content);
+                    }
                 }
 
                 ReceiveMessageContentEventPayload payload = new ReceiveMessageContentEventPayload();
@@ -288,62 +699,58 @@ public class ChatClient {
                 payload.validId = validId;
 
                 receiveMessageContentEvent.invoke(payload);
+                pendingRequests.complete(command, groupId, messageId, m);
                 break;
             }
             case SEND_MESSAGE_LABEL: {
-                int groupId = Integer.parseInt(packet.parameters.get(0));
-                int messageId = Integer.parseInt(packet.parameters.get(1));
-                String username = packet.parameters.get(2);
-                String postDate = packet.parameters.get(3);
-                String subject = packet.parameters.get(4);
-
-                if (!groups.containsKey(groupId))
+                int groupId = frame.getIntParameter(0);
+                int messageId = frame.getIntParameter(1);
+                String username = frame.getParameter(2);
+                String postDate = frame.getParameter(3);
+                String subject = frame.getParameter(4);
+
+                Group g = state.getGroup(groupId);
+                if (g == null)
                     return; // Ignore messages from groups that we are not a part of
 
-                Message m = new Message(groupId, messageId, username, postDate, subject);
-                groups.get(groupId).messages.put(messageId, m);
+                g.messages.add(messageId, username, postDate, subject);
+                Message m = g.getMessage(messageId);
+                saveLabel(m);
 
                 ReceiveMessageLabelEventPayload payload = new ReceiveMessageLabelEventPayload();
                 payload.labelMessage = m;
 
                 receiveMessageLabelEvent.invoke(payload);
+                prefetcher.labelArrived(m);
                 return;
             }
             case SEND_USER_LIST: {
-                int groupId = Integer.parseInt(packet.parameters.get(0));
+                int groupId = frame.getIntParameter(0);
 
-                String[] usernames = packet.parameters.size() > 1 ? packet.parameters.get(1).split(",")
+                String[] usernames = frame.getParameterCount() > 1 ? frame.getParameter(1).split(",")
                         : new String[] {}; // If there is not a second paramter, there are no users, so create an
                                            // empty
                                            // list
 
-                if (!groups.containsKey(groupId))
-                    retrieveGroups(); // Ignore messages from groups that we are not a part of
+                Group g = groupDirectory.getOrPlaceholder(groupId, () -> new Group(groupId));
 
-                Group g = groups.get(groupId);
-
-                g.users.clear();
-
-                for (String name : usernames) {
-                    g.users.add(name);
-                }
+                g.setUsers(Arrays.asList(usernames));
 
                 ReceiveUserListEventPayload payload = new ReceiveUserListEventPayload();
                 payload.group = g;
 
+                staleUserLists.remove(groupId);
                 receiveUserListEvent.invoke(payload);
+                pendingRequests.complete(command, groupId, PendingRequests.NO_ID, g);
                 break;
             }
             case USER_JOIN_NOTIF: {
-                int groupId = Integer.parseInt(packet.parameters.get(0));
-                String username = packet.parameters.get(1);
+                int groupId = frame.getIntParameter(0);
+                String username = frame.getParameter(1);
 
-                if (!groups.containsKey(groupId))
-                    retrieveGroups();
+                Group g = groupDirectory.getOrPlaceholder(groupId, () -> new Group(groupId));
 
-                Group g = groups.get(groupId);
-
-                g.users.add(username);
+                g.addUser(username);
 
                 UserJoinEventPayload payload = new UserJoinEventPayload();
                 payload.group = g;
@@ -353,27 +760,29 @@ public class ChatClient {
                 return;
             }
             case USER_LEAVE_NOTIF: {
-                int groupId = Integer.parseInt(packet.parameters.get(0));
-                String username = packet.parameters.get(1);
-
-                if (!groups.containsKey(groupId))
-                    retrieveGroups();
+                int groupId = frame.getIntParameter(0);
+                String username = frame.getParameter(1);
 
-                Group g = groups.get(groupId);
+                Group g = groupDirectory.getOrPlaceholder(groupId, () -> new Group(groupId));
 
-                g.users.remove(username);
+                g.removeUser(username);
 
                 UserLeaveEventPayload payload = new UserLeaveEventPayload();
                 payload.group = g;
                 payload.username = username;
 
                 userLeaveEvent.invoke(payload);
+
+                if (groupId == 0 && username.equals(this.username)) // We logged out
+                    pendingRequests.complete(command, groupId, PendingRequests.NO_ID, null);
                 break;
             }
             case VERIFY_USERNAME: {
-                boolean success = (packet.parameters.get(0).equals("1"));
+                boolean success = frame.getFlagParameter(0);
 
-                if (success) {
+                if (success) { // Join default group on join
+                    state.addGroup(new Group(0, "Global"));
+                    state.addMembership(0);
                     joined = true;
                 }
 
@@ -381,6 +790,7 @@ public class ChatClient {
                 payload.isValid = success;
 
                 usernameVerifyEvent.invoke(payload);
+                pendingRequests.complete(command, PendingRequests.NO_ID, PendingRequests.NO_ID, success);
                 return;
             }
             default:
@@ -397,27 +807,22 @@ public class ChatClient {
      */
 
     public boolean join(String username) {
-        if (!joined) {
-
-            synchronized (this) {
-                this.username = username;
-                ClientProtocol.createJoinPacket(username).send(outputStream);
-            }
-
-            UsernameVerifyEventPayload payload = usernameVerifyEvent.waitForEvent();
-
-            synchronized (this) {
+        return await(joinAsync(username), false);
+    }
 
-                if (payload.isValid) { // Join default group on join
-                    groups.put(0, new Group(0, "Global"));
-                    userGroups.add(0);
-                }
+    /*
+     * Completes with whether the server accepted the username.
+     */
+    public CompletableFuture<Boolean> joinAsync(String username) {
+        if (joined)
+            return CompletableFuture.completedFuture(false);
 
-                return payload.isValid;
-            }
-        }
+        this.username = username;
 
-        return false;
+        // A copy, so completing or cancelling it does not affect the shared request
+        return pendingRequests.<Boolean>register(ServerCommand.VERIFY_USERNAME, PendingRequests.NO_ID,
+                PendingRequests.NO_ID, requestTimeoutMillis,
+                () -> ClientProtocol.createJoinPacket(username).send(packetWriter)).copy();
     }
 
     public boolean postMessage(int groupId, String subject, String content) {
@@ -427,25 +832,74 @@ public class ChatClient {
         if (!isValidGroupId(groupId, true, false))
             return false;
 
-        ClientProtocol.createMessagePacket(MessageAction.POST, groupId, -1, subject, content).send(outputStream);
+        ClientProtocol.createMessagePacket(MessageAction.POST, groupId, -1, subject, content).send(packetWriter);
 
         return true;
     }
 
     public Message retrieveMessage(int groupId, int messageId) {
-        if (joined && requestMessage(groupId, messageId)) {
+        return retrieveMessage(groupId, messageId, false);
+    }
+
+    /*
+     * refresh asks the server even if the content is already loaded.
+     */
+    public Message retrieveMessage(int groupId, int messageId, boolean refresh) {
+        return await(retrieveMessageAsync(groupId, messageId, refresh), null);
+    }
 
-            ReceiveMessageContentEventPayload messagePayload = null;
-            while (messagePayload == null || messagePayload.groupId != groupId
-                    || messagePayload.messageId != messageId) {
-                messagePayload = receiveMessageContentEvent.waitForEvent();
+    public CompletableFuture<Message> retrieveMessageAsync(int groupId, int messageId) {
+        return retrieveMessageAsync(groupId, messageId, false);
+    }
+
+    /*
+     * Completes with the message, with its content loaded, or null if the
+     * message could not be retrieved.
+     *
+     * Content that is already loaded (cached or in the message store) is
+     * returned without asking the server, unless refresh is true, but only
+     * for groups the user is still in. Requests for the same message made
+     * while one is in flight share it.
+     */
+    public CompletableFuture<Message> retrieveMessageAsync(int groupId, int messageId, boolean refresh) {
+        if (!joined)
+            return CompletableFuture.completedFuture(null);
+
+        if (!checkGroupMembership(groupId, true, false))
+            return CompletableFuture.completedFuture(null);
+
+        if (!refresh) {
+            // A cache miss, even for a message that was loaded before, falls through to the store and server
+            Message saved = state.getMessage(groupId, messageId);
+            if (saved != null) {
+                saved.content = contentCache.get(groupId, messageId);
+                if (saved.content != null)
+                    return CompletableFuture.completedFuture(saved);
             }
 
-            return messagePayload.message;
+            Message stored = loadStoredContent(groupId, messageId);
+            if (stored != null)
+                return CompletableFuture.completedFuture(stored);
         }
 
-        return null;
+        return isValidGroupIdAsync(groupId, true, false).thenCompose((valid) -> {
+            if (!valid)
+                return CompletableFuture.completedFuture(null);
 
+            return pendingRequests.register(ServerCommand.SEND_MESSAGE_CONTENT, groupId, messageId,
+                    requestTimeoutMillis,
+                    () -> ClientProtocol.createMessagePacket(MessageAction.RETRIEVE, groupId, messageId, "", "")
+                            .send(packetWriter));
+        });
+    }
+
+    /*
+     * Retrieves many messages, sending up to the retrieve window's worth of
+     * requests before the first response arrives. Messages are published as
+     * their content arrives; ids the server does not know are skipped.
+     */
+    public Flow.Publisher<Message> retrieveMessages(int groupId, int[] messageIds) {
+        return new MessageStream(this, groupId, messageIds, retrieveWindow);
     }
 
     public boolean requestMessage(int groupId, int messageId) {
@@ -456,7 +910,7 @@ public class ChatClient {
             return false;
 
         ClientProtocol.createMessagePacket(MessageAction.RETRIEVE, groupId, messageId, "", "")
-                .send(outputStream);
+                .send(packetWriter);
 
         return true;
     }
@@ -468,8 +922,8 @@ public class ChatClient {
         if (!isValidGroupId(groupId, false, true))
             return false;
 
-        userGroups.add(groupId);
-        ClientProtocol.createGroupPacket(GroupAction.JOIN, groupId).send(outputStream);
+        state.addMembership(groupId);
+        ClientProtocol.createGroupPacket(GroupAction.JOIN, groupId).send(packetWriter);
 
         return true;
     }
@@ -481,46 +935,59 @@ public class ChatClient {
         if (!isValidGroupId(groupId, true, false))
             return false;
 
-        userGroups.remove(userGroups.indexOf(groupId));
-        ClientProtocol.createGroupPacket(GroupAction.LEAVE, groupId).send(outputStream);
+        state.removeMembership(groupId);
+        ClientProtocol.createGroupPacket(GroupAction.LEAVE, groupId).send(packetWriter);
 
         return true;
     }
 
     public void logOut() {
-        if (joined) {
-            ClientProtocol.createLeavePacket().send(outputStream);
-
-            UserLeaveEventPayload payload = null;
-            while (payload == null || !payload.username.equals(username) || payload.group.id != 0) {
-                payload = userLeaveEvent.waitForEvent();
-            }
+        await(logOutAsync(), null);
+    }
 
-            synchronized (this) {
-                // Reset server info
-                joined = false;
-                username = null;
-                userGroups.clear();
-                groups.clear();
-            }
-        }
+    /*
+     * Completes once the server has confirmed that we left. The server info is
+     * reset even if it does not.
+     */
+    public CompletableFuture<Void> logOutAsync() {
+        if (!joined)
+            return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<Void> left = pendingRequests.register(ServerCommand.USER_LEAVE_NOTIF, 0,
+                PendingRequests.NO_ID, requestTimeoutMillis,
+                () -> ClientProtocol.createLeavePacket().send(packetWriter));
+
+        return left.whenComplete((result, e) -> {
+            // Reset server info
+            joined = false;
+            username = null;
+            state.clear();
+            groupDirectory.invalidate();
+            prefetcher.clear();
+            contentCache.clear();
+        });
     }
 
     public Group retrieveGroupUsers(int groupId) {
+        return await(retrieveGroupUsersAsync(groupId), null);
+    }
 
-        if (joined && requestGroupUsers(groupId)) {
-
-            Group retrievedGroup = null;
-
-            while (retrievedGroup == null || retrievedGroup.id != groupId) {
-                retrievedGroup = receiveUserListEvent.waitForEvent().group;
-            }
-
-            return retrievedGroup;
-        }
+    /*
+     * Completes with the group, with its users updated, or null if the group
+     * does not exist.
+     */
+    public CompletableFuture<Group> retrieveGroupUsersAsync(int groupId) {
+        if (!joined)
+            return CompletableFuture.completedFuture(null);
 
-        return null;
+        return isValidGroupIdAsync(groupId, false, false).thenCompose((valid) -> {
+            if (!valid)
+                return CompletableFuture.completedFuture(null);
 
+            return pendingRequests.register(ServerCommand.SEND_USER_LIST, groupId, PendingRequests.NO_ID,
+                    requestTimeoutMillis,
+                    () -> ClientProtocol.createGroupPacket(GroupAction.USERS, groupId).send(packetWriter));
+        });
     }
 
     public boolean requestGroupUsers(int groupId) {
@@ -530,110 +997,441 @@ public class ChatClient {
         if (!isValidGroupId(groupId, false, false))
             return false;
 
-        ClientProtocol.createGroupPacket(GroupAction.USERS, groupId).send(outputStream);
+        ClientProtocol.createGroupPacket(GroupAction.USERS, groupId).send(packetWriter);
 
         return true;
     }
 
     public ArrayList<Group> retrieveGroups() {
-        if (joined) {
-            requestGroups();
-            receiveGroupListEvent.waitForEvent();
-            synchronized (this) {
-                return new ArrayList<Group>(groups.values());
-            }
-        }
+        if (!joined)
+            return null;
+
+        ArrayList<Group> result = await(retrieveGroupsAsync(), null);
+        if (result != null)
+            return result;
+
+        return state.getGroupList(); // What we know so far
+    }
+
+    /*
+     * Completes with every group the server has, or null if we have not
+     * joined. Calls made while the list is being fetched share that fetch.
+     */
+    public CompletableFuture<ArrayList<Group>> retrieveGroupsAsync() {
+        if (!joined)
+            return CompletableFuture.completedFuture(null);
+
+        return groupDirectory.refresh().copy(); // The fetch is shared with every other caller
+    }
 
-        return null;
+    private CompletableFuture<ArrayList<Group>> fetchGroups() {
+        return pendingRequests.register(ServerCommand.SEND_GROUPS_LIST, PendingRequests.NO_ID, PendingRequests.NO_ID,
+                requestTimeoutMillis, () -> ClientProtocol.createGroupPacket(GroupAction.LIST, -1).send(packetWriter));
     }
 
     public void requestGroups() {
         if (joined) {
-            ClientProtocol.createGroupPacket(GroupAction.LIST, -1).send(outputStream);
+            ClientProtocol.createGroupPacket(GroupAction.LIST, -1).send(packetWriter);
         }
     }
 
     public void disconnect() throws IOException {
-        final int TIMEOUT = 5000;
+        try {
+            disconnectAsync().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
 
-        ClientProtocol.createDisconnectPacket().send(outputStream);
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Completes once the socket is closed. The server is given
+     * DISCONNECT_TIMEOUT to close it before we do.
+     */
+    public CompletableFuture<Void> disconnectAsync() {
+        ClientProtocol.createDisconnectPacket().send(packetWriter);
+        packetWriter.flush(); // Don't let the last packet linger
 
         joined = false;
 
         // Wait for the server to close the socket
+        return closeFuture.copy().completeOnTimeout(null, DISCONNECT_TIMEOUT, TimeUnit.MILLISECONDS).thenRun(() -> {
+            packetWriter.close();
+            closeMessageStore();
+
+            try {
+                if (socket != null && !socket.isClosed())
+                    socket.close();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /*
+     * Waits for a request's response. Returns fallback if the request timed
+     * out, the connection closed, or the thread was interrupted.
+     */
+    private <T> T await(CompletableFuture<T> future, T fallback) {
         try {
-            int timeElapsed = 0;
-            while (!socket.isClosed() && timeElapsed < TIMEOUT) {
-                Thread.sleep(100);
-                timeElapsed += 100;
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                System.out.println("The server did not respond in time");
+            } else {
+                System.out.println("Request failed : " + e.getCause().getMessage());
             }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
         }
 
-        if (socket != null && !socket.isClosed())
-            socket.close();
+        return fallback;
+    }
+
+    /*
+     * Sets how long the blocking request functions wait for the server before
+     * giving up.
+     */
+    public void setRequestTimeout(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /*
+     * Sets how many bytes of message content are kept in memory. Content
+     * dropped to stay under the budget is fetched again when it is read.
+     */
+    public void setContentCacheBudget(long bytes) {
+        contentCache.setBudget(bytes);
+    }
+
+    /*
+     * The content cache, which has the hit, miss and eviction counters.
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /*
+     * Sets the directory that labels and content are saved in, so they do not
+     * have to be downloaded again after a restart. Each server gets its own
+     * store inside it. Takes effect on the next connect; null stops saving.
+     */
+    public void setMessageStoreDirectory(Path directory) {
+        this.messageStoreDirectory = directory;
+    }
+
+    /*
+     * The current server's store, or null if there is none.
+     */
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /*
+     * Sets how the content of new messages is prefetched: at most maxInFlight
+     * requests at a time, for messages in the focused group and the groups
+     * focused before it (recentGroups in all). 0 turns prefetching off, which
+     * is the default.
+     */
+    public void setPrefetch(int maxInFlight, int recentGroups) {
+        prefetcher.configure(maxInFlight, recentGroups, ContentPrefetcher.DEFAULT_MAX_QUEUED);
+    }
+
+    /*
+     * Tells the client which group the user is looking at. New messages there
+     * are prefetched first, and queued prefetches for other groups are
+     * cancelled.
+     */
+    public void setFocusedGroup(int groupId) {
+        prefetcher.focus(groupId);
+    }
+
+    public ContentPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /*
+     * Sets how long a group list is trusted to say which group ids do not
+     * exist.
+     */
+    public void setGroupCacheTtl(long ttlMillis) {
+        groupDirectory.setTtl(ttlMillis);
+    }
+
+    public GroupDirectory getGroupDirectory() {
+        return groupDirectory;
+    }
+
+    /*
+     * Sets how many RETRIEVE requests retrieveMessages sends ahead of the
+     * responses.
+     */
+    public void setRetrieveWindow(int retrieveWindow) {
+        if (retrieveWindow < 1)
+            throw new IllegalArgumentException("retrieveWindow must be at least 1");
+
+        this.retrieveWindow = retrieveWindow;
+    }
+
+    /*
+     * Sets how outgoing packets are flushed. Takes effect on the next connect.
+     *
+     * lingerMillis is only used by the LINGER policy.
+     */
+    public void setFlushPolicy(PacketWriter.FlushPolicy flushPolicy, long lingerMillis) {
+        this.flushPolicy = flushPolicy;
+        this.lingerMillis = lingerMillis;
+    }
+
+    /*
+     * Makes the client read from the server on one of the group's threads
+     * instead of its own response handler thread. Many clients can share one
+     * group. Takes effect on the next connect; null goes back to a thread per
+     * client.
+     */
+    public void setEventLoopGroup(EventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+    }
+
+    /*
+     * Sets the dispatcher that received packets are handled on. Null uses
+     * PacketDispatcher.getDefault(), which is shared by every client.
+     */
+    public void setDispatcher(PacketDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /*
+     * Sets how many groups' packets can be handled at the same time. Takes
+     * effect on the next connect.
+     */
+    public void setDispatchLaneCount(int dispatchLaneCount) {
+        if (dispatchLaneCount < 1)
+            throw new IllegalArgumentException("dispatchLaneCount must be at least 1");
+
+        this.dispatchLaneCount = dispatchLaneCount;
+    }
+
+    /*
+     * Sets how many received packets can be waiting to be handled, and what
+     * to do when that many are. Takes effect on the next connect.
+     *
+     * The default is BLOCK. On an EventLoopGroup, BLOCK pauses reading the
+     * connection instead of holding up the loop's thread.
+     */
+    public void setInboundLimit(int capacity, InboundLimiter.OverloadPolicy overloadPolicy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        if (overloadPolicy == null)
+            throw new IllegalArgumentException("overloadPolicy must not be null");
+
+        this.inboundCapacity = capacity;
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /*
+     * The current connection's limiter, which has its queue depth and drop
+     * counters.
+     */
+    public InboundLimiter getInboundLimiter() {
+        return inboundLimiter;
+    }
+
+    /*
+     * The number of frames received with a command that is not a
+     * ServerCommand.
+     */
+    public long getUnknownCommandCount() {
+        return unknownCommands.get();
+    }
+
+    public PacketDispatcher getDispatcher() {
+        PacketDispatcher dispatcher = this.dispatcher;
+        return (dispatcher != null) ? dispatcher : PacketDispatcher.getDefault();
+    }
+
+    /*
+     * Sets whether to ask the server for binary framing. Takes effect on the
+     * next connect.
+     */
+    public void setBinaryFramingEnabled(boolean enabled) {
+        this.binaryFramingEnabled = enabled;
+    }
+
+    /*
+     * Sets whether to ask the server to compress large parameters, such as
+     * message content. Parameters of at least threshold characters are
+     * compressed. dictionary is a preset dictionary shared with the server, or
+     * null.
+     *
+     * Compression needs binary framing, and takes effect on the next connect.
+     */
+    public void setCompression(boolean enabled, int threshold, byte[] dictionary) {
+        this.compressionEnabled = enabled;
+        this.compressionThreshold = threshold;
+        this.compressionDictionary = dictionary;
+    }
+
+    /*
+     * The current connection's compressor, which has the compression
+     * statistics. Null if the connection is not compressed.
+     */
+    public PayloadCompressor getCompressor() {
+        return compressor;
+    }
+
+    /*
+     * Whether the current connection is using binary framing.
+     */
+    public boolean isBinaryFraming() {
+        return frameDecoder != null && frameDecoder.getMode() == ClientProtocol.FramingMode.BINARY;
     }
 
     /*
      * Utility functions
      */
 
+    /*
+     * Returns the message's label, from memory or else from the message store,
+     * or null if neither has it.
+     */
     final public Message getSavedMessage(int groupId, int messageId) {
-        if (!groups.containsKey(groupId))
+        Message m = state.getMessage(groupId, messageId);
+        MessageStore store = messageStore;
+        if (m != null || store == null)
+            return m;
+
+        MessageStore.StoredLabel label;
+        try {
+            label = store.getLabel(groupId, messageId);
+        } catch (IOException e) {
+            System.out.println("Could not read the message store : " + e.getMessage());
             return null;
+        }
 
-        Group g = groups.get(groupId);
+        if (label == null)
+            return null;
+
+        Group g = state.getGroup(groupId);
+        if (g == null)
+            return new Message(groupId, messageId, label.username, label.postDate, label.subject);
 
-        if (!g.messages.containsKey(messageId))
+        g.messages.addIfAbsent(messageId, label.username, label.postDate, label.subject);
+        return g.getMessage(messageId);
+    }
+
+    /*
+     * Returns the message with its content loaded from the message store, or
+     * null if the store does not have both its label and content.
+     */
+    private Message loadStoredContent(int groupId, int messageId) {
+        MessageStore store = messageStore;
+        if (store == null)
+            return null;
+
+        String content;
+        try {
+            content = store.getContent(groupId, messageId);
+        } catch (IOException e) {
+            System.out.println("Could not read the message store : " + e.getMessage());
+            return null;
+        }
+
+        if (content == null)
             return null;
 
-        return g.messages.get(messageId);
+        Message m = getSavedMessage(groupId, messageId);
+        if (m != null)
+            m.setContent(content);
+
+        return m;
     }
 
-    public boolean isValidGroupId(int groupId, boolean mustBeInGroup, boolean mustNotBeInGroup) {
+    private void saveLabel(Message m) {
+        MessageStore store = messageStore;
+        if (store == null)
+            return;
 
-        if (!groups.containsKey(groupId)) {
-            retrieveGroups();
-            if (!groups.containsKey(groupId)) {
-                return false;
-            }
+        try {
+            store.putLabel(m.groupId, m.messageId, m.getUsername(), m.getPostDate(), m.getSubject());
+        } catch (IOException e) {
+            System.out.println("Could not save the message : " + e.getMessage());
+        }
+    }
+
+    private void saveContent(Message m, String content) {
+        MessageStore store = messageStore;
+        if (store == null)
+            return;
+
+        try {
+            store.putContent(m.groupId, m.messageId, content);
+        } catch (IOException e) {
+            System.out.println("Could not save the message : " + e.getMessage());
         }
+    }
+
+    public boolean isValidGroupId(int groupId, boolean mustBeInGroup, boolean mustNotBeInGroup) {
+        return await(isValidGroupIdAsync(groupId, mustBeInGroup, mustNotBeInGroup), false);
+    }
+
+    /*
+     * Like isValidGroupId, but only waits for the server (without blocking) if
+     * the group is not known and the group list is out of date.
+     */
+    public CompletableFuture<Boolean> isValidGroupIdAsync(int groupId, boolean mustBeInGroup,
+            boolean mustNotBeInGroup) {
+        return groupDirectory.exists(groupId)
+                .thenApply((exists) -> exists && checkGroupMembership(groupId, mustBeInGroup, mustNotBeInGroup));
+    }
 
-        if (mustBeInGroup && !userGroups.contains(groupId))
+    private boolean checkGroupMembership(int groupId, boolean mustBeInGroup, boolean mustNotBeInGroup) {
+        if (mustBeInGroup && !state.isMember(groupId))
             return false;
 
-        if (mustNotBeInGroup && userGroups.contains(groupId))
+        if (mustNotBeInGroup && state.isMember(groupId))
             return false;
 
         return true;
     }
 
-    public synchronized Integer[] getUserGroups() {
-        return userGroups.toArray(new Integer[userGroups.size()]);
+    /*
+     * The current snapshot of the groups and memberships. Cheap enough to call
+     * on every redraw or lookup.
+     */
+    public ClientState.Snapshot getSnapshot() {
+        return state.getSnapshot();
+    }
+
+    public int[] getUserGroups() {
+        return state.getMemberships();
     }
 
-    public synchronized Group[] getGroups() {
-        return groups.values().toArray(new Group[groups.size()]);
+    public Group[] getGroups() {
+        return state.getGroups();
     }
 
-    public synchronized Group getGroup(int id) {
-        return groups.get(id);
+    public Group getGroup(int id) {
+        return state.getGroup(id);
     }
 
-    public synchronized boolean userIsInGroup(Group g) {
+    public boolean userIsInGroup(Group g) {
         return userIsInGroup(g.id);
     }
 
-    public synchronized boolean userIsInGroup(int groupId) {
-        return userGroups.contains(groupId);
+    public boolean userIsInGroup(int groupId) {
+        return state.isMember(groupId);
     }
 
-    public synchronized boolean isJoined() {
+    public boolean isJoined() {
         return joined;
     }
 
-    public synchronized String getUsername() {
+    public String getUsername() {
         return username;
     }
 
@@ -1,67 +1,178 @@
 package com.networking.chatclient;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 /*
  * A general class used for client events.
- * 
- * Code can interact with these events in 2 ways. It can "listen" to the event 
- * (have a function be called when the event occurs), or it can wait for the 
+ *
+ * Code can interact with these events in 2 ways. It can "listen" to the event
+ * (have a function be called when the event occurs), or it can wait for the
  * event (block until the event occurs).
+ *
+ * Invoking an event never waits on anything: listeners are kept in an array
+ * that is copied whenever a listener is added or removed, and each waiting
+ * thread is handed the event directly. Listeners added with an Executor are
+ * run on it, so a slow listener (for example one that updates Swing) does not
+ * hold up whoever invoked the event.
  */
 public class ClientEvent<T> {
 
-    T eventParameter;
+    private static class Listener<T> {
+        final int id;
+        final Consumer<T> eventFunction;
+        final Executor executor; // Null to run on the invoking thread
 
-    // Uses these to ensure that a second event doen't get called before everything
-    // waiting for the first event had a chance to respond
-    int waitingForEvent = 0;
-    int waitingAfterEvent = 0;
+        Listener(int id, Consumer<T> eventFunction, Executor executor) {
+            this.id = id;
+            this.eventFunction = eventFunction;
+            this.executor = executor;
+        }
+    }
+
+    /*
+     * A thread blocked in waitForEvent.
+     */
+    private static class Waiter<T> {
+        final Thread thread = Thread.currentThread();
+        volatile T eventParameter;
+        volatile boolean done = false;
+    }
+
+    private final AtomicReference<Listener<T>[]> listeners = new AtomicReference<Listener<T>[]>(noListeners());
+    private final AtomicInteger currentFunctionId = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Waiter<T>> waiters = new ConcurrentLinkedQueue<Waiter<T>>();
+
+    @SuppressWarnings("unchecked")
+    private static <T> Listener<T>[] noListeners() {
+        return (Listener<T>[]) new Listener<?>[0];
+    }
 
-    int currentFunctionId = 0;
-    HashMap<Integer, Consumer<T>> eventFunctions = new HashMap<Integer, Consumer<T>>();
+    /*
+     * Blocks until the next time the event is invoked and returns its
+     * parameter. Returns null if interrupted.
+     */
+    public T waitForEvent() {
+        return waitForEvent(0);
+    }
+
+    /*
+     * Like waitForEvent(), but gives up and returns null after timeoutMillis.
+     * A timeout of 0 waits forever.
+     */
+    public T waitForEvent(long timeoutMillis) {
+        Waiter<T> waiter = new Waiter<T>();
+        waiters.add(waiter);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (!waiter.done) {
+            if (timeoutMillis == 0) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
 
-    public synchronized T waitForEvent() {
-        try {
-            waitingForEvent++;
-            this.wait();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return null;
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            // Parking leaves the interrupt flag set, so the caller still sees it
+            if (Thread.currentThread().isInterrupted())
+                break;
         }
 
-        T returnedParameter = eventParameter;
+        if (!waiter.done) {
+            if (waiters.remove(waiter))
+                return null;
 
-        waitingAfterEvent--;
-        if (waitingAfterEvent == 0) {
-            this.notify();
+            // invoke already took the waiter and is handing the event over
+            while (!waiter.done)
+                LockSupport.park(this);
         }
 
-        return returnedParameter;
+        return waiter.eventParameter;
+    }
+
+    /*
+     * Calls eventFunction on the invoking thread every time the event is
+     * invoked. Returns an id that can be passed to removeListener.
+     */
+    public int onEvent(Consumer<T> eventFunction) {
+        return onEvent(eventFunction, null);
     }
 
-    public synchronized int onEvent(Consumer<T> eventFunction) {
-        eventFunctions.put(currentFunctionId, eventFunction);
-        return currentFunctionId++;
+    /*
+     * Calls eventFunction on the executor every time the event is invoked.
+     * Returns an id that can be passed to removeListener.
+     */
+    public int onEvent(Consumer<T> eventFunction, Executor executor) {
+        int id = currentFunctionId.getAndIncrement();
+        Listener<T> listener = new Listener<T>(id, eventFunction, executor);
+
+        Listener<T>[] current;
+        Listener<T>[] updated;
+        do {
+            current = listeners.get();
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+        } while (!listeners.compareAndSet(current, updated));
+
+        return id;
+    }
+
+    /*
+     * Stops calling the listener with the given id. Returns false if there was
+     * no such listener.
+     */
+    public boolean removeListener(int id) {
+        Listener<T>[] current;
+        Listener<T>[] updated;
+        do {
+            current = listeners.get();
+
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].id == id)
+                    index = i;
+            }
+
+            if (index == -1)
+                return false;
+
+            updated = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        } while (!listeners.compareAndSet(current, updated));
 
+        return true;
     }
 
-    public synchronized void invoke(T eventParameter) {
-        if (waitingAfterEvent > 0) {
+    public void invoke(T eventParameter) {
+        Waiter<T> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.eventParameter = eventParameter;
+            waiter.done = true;
+            LockSupport.unpark(waiter.thread);
+        }
+
+        for (Listener<T> listener : listeners.get()) {
+            if (listener.executor != null) {
+                listener.executor.execute(() -> listener.eventFunction.accept(eventParameter));
+                continue;
+            }
+
             try {
-                this.wait();
-            } catch (InterruptedException e) {
+                listener.eventFunction.accept(eventParameter);
+            } catch (RuntimeException e) {
                 e.printStackTrace();
             }
         }
-        waitingAfterEvent = waitingForEvent;
-        waitingForEvent = 0;
-        this.eventParameter = eventParameter;
-        this.notifyAll();
-        for (Consumer<T> eventFunction : eventFunctions.values()) {
-            eventFunction.accept(eventParameter);
-        }
 
     }
-}
\ No newline at end of file
+}
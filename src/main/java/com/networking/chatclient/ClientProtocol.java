@@ -16,6 +16,48 @@ public final class ClientProtocol {
         LIST
     }
 
+    /*
+     * How packets are framed on the wire.
+     *
+     * TEXT is the original format: CRLF separated lines ended by a null
+     * terminator. BINARY frames are laid out as
+     *
+     * [int32 length of the rest of the frame]
+     * [byte command code]
+     * [byte parameter count]
+     * then for each parameter either
+     * ['I'][int32 value] or
+     * ['S'][int32 byte length][UTF-8 bytes] or
+     * ['Z'][int32 compressed length][int32 byte length][deflated UTF-8 bytes]
+     *
+     * All ints are big-endian. BINARY is only used after the server accepts it
+     * through the FRAMING handshake, and 'Z' parameters only if the server also
+     * accepted DEFLATE.
+     */
+    public enum FramingMode {
+        TEXT,
+        BINARY
+    }
+
+    static final byte INT_PARAMETER = 'I';
+    static final byte STRING_PARAMETER = 'S';
+    static final byte COMPRESSED_PARAMETER = 'Z';
+    static final String DEFLATE = "DEFLATE";
+
+    /*
+     * Command codes used by binary frames.
+     */
+    static final String[] commandCodes = { null, "JOIN", "LEAVE", "MESSAGE", "GROUP", "DISCONNECT", "FRAMING" };
+
+    static byte getCommandCode(String command) {
+        for (int i = 1; i < commandCodes.length; i++) {
+            if (commandCodes[i].equals(command))
+                return (byte) i;
+        }
+
+        throw new IllegalArgumentException("No binary code for command " + command);
+    }
+
     public static ProtocolPacket createJoinPacket(String username) {
         ProtocolPacket packet = new ProtocolPacket();
         packet.setCommand("JOIN");
@@ -49,6 +91,19 @@ public final class ClientProtocol {
         return packet;
     }
 
+    /*
+     * Asks the server to switch to a framing mode, and optionally to allow
+     * compressed parameters. Always sent as text.
+     */
+    public static ProtocolPacket createFramingPacket(FramingMode mode, boolean deflate) {
+        ProtocolPacket packet = new ProtocolPacket();
+        packet.setCommand("FRAMING");
+        packet.addParameter(mode);
+        if (deflate)
+            packet.addParameter(DEFLATE);
+        return packet;
+    }
+
     public static ProtocolPacket createDisconnectPacket() {
         ProtocolPacket packet = new ProtocolPacket();
         packet.setCommand("DISCONNECT");
@@ -0,0 +1,210 @@
+package com.networking.chatclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.networking.chatclient.ChatClient.Group;
+import com.networking.chatclient.ChatClient.Message;
+
+/*
+ * Everything a client knows about the server it has joined: the groups, and
+ * which of them the user is in.
+ *
+ * Packets are handled on several threads at once (one per dispatch lane), while
+ * the user interface and API callers read from their own threads, so this is
+ * built on concurrent collections instead of the client's monitor. Reads never
+ * block, and never wait for a packet to be handled.
+ *
+ * Ids are kept as ints (IntObjectMap, IntSet) rather than boxed Integers.
+ *
+ * Whenever the groups or memberships change, a new immutable Snapshot of them
+ * is published. Readers that want to list them (the user interfaces) get the
+ * current one with a volatile read instead of copying the collections, and
+ * can compare versions to tell whether anything changed.
+ */
+public class ClientState {
+
+    /*
+     * The groups and memberships at one point in time. Never changes.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final List<Group> groups; // Sorted by id
+        private final List<Group> userGroups; // Sorted by id
+        private final IntSet memberships;
+        private final Map<String, Group> groupsByName;
+
+        private Snapshot(long version, List<Group> groups, int[] membershipIds, IntObjectMap<Group> groupsById) {
+            this.version = version;
+            this.groups = groups;
+
+            ArrayList<Group> userGroups = new ArrayList<Group>(membershipIds.length);
+            IntSet memberships = new IntSet();
+            for (int id : membershipIds) {
+                memberships.add(id);
+
+                Group g = groupsById.get(id);
+                if (g != null)
+                    userGroups.add(g);
+            }
+            this.userGroups = Collections.unmodifiableList(userGroups);
+            this.memberships = memberships;
+
+            HashMap<String, Group> groupsByName = new HashMap<String, Group>();
+            for (Group g : groups) {
+                if (g.name != null)
+                    groupsByName.put(g.name, g);
+            }
+            this.groupsByName = groupsByName;
+        }
+
+        /*
+         * Increases every time something changes.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /*
+         * Every known group, sorted by id. The list cannot be modified.
+         */
+        public List<Group> getGroups() {
+            return groups;
+        }
+
+        /*
+         * The groups the user is in, sorted by id. The list cannot be modified.
+         */
+        public List<Group> getUserGroups() {
+            return userGroups;
+        }
+
+        public boolean isMember(int groupId) {
+            return memberships.contains(groupId);
+        }
+
+        /*
+         * The group with the given name, or null. If several groups share the
+         * name, the one with the highest id.
+         */
+        public Group getGroup(String name) {
+            return groupsByName.get(name);
+        }
+    }
+
+    private final IntObjectMap<Group> groups = new IntObjectMap<Group>();
+    private final IntSet memberships = new IntSet(); // Ids of the groups the user is in
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<Group>emptyList(), new int[0], groups);
+
+    /*
+     * Groups
+     */
+
+    public Group getGroup(int groupId) {
+        return groups.get(groupId);
+    }
+
+    public boolean hasGroup(int groupId) {
+        return groups.containsKey(groupId);
+    }
+
+    /*
+     * Adds the group unless one with the same id is known. Returns the group
+     * that is known after the call.
+     */
+    public Group addGroup(Group group) {
+        Group existing = groups.putIfAbsent(group.id, group);
+        if (existing != null)
+            return existing;
+
+        publish();
+        return group;
+    }
+
+    /*
+     * Names a placeholder group (one added before its name was known).
+     */
+    public void nameGroup(Group group, String name) {
+        if (group.name != null)
+            return;
+
+        group.name = name;
+        publish();
+    }
+
+    public Group[] getGroups() {
+        List<Group> groups = snapshot.getGroups();
+        return groups.toArray(new Group[groups.size()]);
+    }
+
+    public ArrayList<Group> getGroupList() {
+        return new ArrayList<Group>(snapshot.getGroups());
+    }
+
+    public Message getMessage(int groupId, int messageId) {
+        Group g = groups.get(groupId);
+        return (g != null) ? g.getMessage(messageId) : null;
+    }
+
+    /*
+     * Memberships
+     */
+
+    public boolean isMember(int groupId) {
+        return memberships.contains(groupId);
+    }
+
+    public void addMembership(int groupId) {
+        if (memberships.add(groupId))
+            publish();
+    }
+
+    /*
+     * Returns false if the user was not in the group.
+     */
+    public boolean removeMembership(int groupId) {
+        if (!memberships.remove(groupId))
+            return false;
+
+        publish();
+        return true;
+    }
+
+    public int[] getMemberships() {
+        return memberships.toArray();
+    }
+
+    /*
+     * Forgets everything, for example after logging out.
+     */
+    public void clear() {
+        memberships.clear();
+        groups.clear();
+        publish();
+    }
+
+    /*
+     * Snapshots
+     */
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /*
+     * Publishes a snapshot of the current state. Called after every change;
+     * the last call to finish sees every change made before it.
+     */
+    private synchronized void publish() {
+        Group[] sorted = groups.values().toArray(new Group[0]);
+        Arrays.sort(sorted, Comparator.comparingInt((Group g) -> g.id));
+
+        snapshot = new Snapshot(snapshot.getVersion() + 1, Collections.unmodifiableList(Arrays.asList(sorted)),
+                memberships.toArray(), groups);
+    }
+}
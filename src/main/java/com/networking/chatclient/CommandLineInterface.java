@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -174,9 +175,10 @@ public class CommandLineInterface extends UserInterface {
                 }
 
                 System.out.print("Users for global group: ");
-                for (int i = 0; i < g.users.size(); i++) {
-                    System.out.print(g.users.get(i));
-                    if (i != g.users.size() - 1) {
+                List<String> users = g.getUsers();
+                for (int i = 0; i < users.size(); i++) {
+                    System.out.print(users.get(i));
+                    if (i != users.size() - 1) {
                         System.out.print(", ");
                     }
                 }
@@ -200,13 +202,14 @@ public class CommandLineInterface extends UserInterface {
                 }
 
                 Message m = client.retrieveMessage(0, messageId);
+                String content = (m != null) ? m.retrieveContent() : null;
 
-                if (m == null) {
+                if (content == null) {
                     System.out.println("Could not retrieve message " + messageId + " from the server.");
                     return false;
                 }
 
-                System.out.println("Message " + m.messageId + ": " + m.getContent());
+                System.out.println("Message " + m.messageId + ": " + content);
                 return true;
 
             }),
@@ -309,9 +312,10 @@ public class CommandLineInterface extends UserInterface {
                 }
 
                 System.out.print("Users for " + g.name + ": ");
-                for (int i = 0; i < g.users.size(); i++) {
-                    System.out.print(g.users.get(i));
-                    if (i != g.users.size() - 1) {
+                List<String> users = g.getUsers();
+                for (int i = 0; i < users.size(); i++) {
+                    System.out.print(users.get(i));
+                    if (i != users.size() - 1) {
                         System.out.print(", ");
                     }
                 }
@@ -365,20 +369,50 @@ public class CommandLineInterface extends UserInterface {
                     return false;
                 }
 
+                client.setFocusedGroup(groupId);
                 Message m = client.retrieveMessage(groupId, messageId);
+                String content = (m != null) ? m.retrieveContent() : null;
 
-                if (m == null) {
+                if (content == null) {
                     System.out.println("Could not retrieve message " + messageId + " from the server.");
                     return false;
                 }
 
-                System.out.println("Message " + m.messageId + ": " + m.getContent());
+                System.out.println("Message " + m.messageId + ": " + content);
                 return true;
 
             }),
 
+            new Command("groupmessages", 2, new String[] { "group id/name" }, (args) -> {
+                int groupId = getGroupIdFromArgument(args.get(1));
+                if (groupId == -1) {
+                    System.out.println("Invalid Group.");
+                    return false;
+                }
+
+                Group g = client.getGroup(groupId);
+                if (g == null || !client.userIsInGroup(groupId)) {
+                    System.out.println("Not in group.");
+                    return false;
+                }
+
+                // The newest labels, oldest first
+                MessageLabels.View labels = g.messages.sortedView();
+                labels = labels.subView(Math.max(0, labels.size() - MESSAGE_LIST_LENGTH), labels.size());
+
+                System.out.println("Messages for " + g.name + ":");
+                for (int i = 0; i < labels.size(); i++) {
+                    System.out.println("Id: " + labels.getMessageId(i) + "\tUser: " + labels.getUsername(i) + "\tDate: "
+                            + labels.getPostDate(i) + "\tSubject: " + labels.getSubject(i));
+                }
+
+                return true;
+            }),
+
     };
 
+    static final int MESSAGE_LIST_LENGTH = 20; // How many labels groupmessages shows
+
     BufferedReader reader; // The buffered reader for System.in
 
     public CommandLineInterface(ChatClient client) {
@@ -401,8 +435,8 @@ public class CommandLineInterface extends UserInterface {
                 System.out.print("\b\b\n");
                 System.out.println("------------------------------New Message------------------------------");
                 System.out.println("Id: " + m.messageId + "\tGroup: " + g.name);
-                System.out.println("User: " + m.username + "\tDate: " + m.postDate);
-                System.out.println("Subject: " + m.subject);
+                System.out.println("User: " + m.getUsername() + "\tDate: " + m.getPostDate());
+                System.out.println("Subject: " + m.getSubject());
                 System.out.println("-----------------------------------------------------------------------");
                 System.out.print("> ");
             }
@@ -457,11 +491,9 @@ public class CommandLineInterface extends UserInterface {
                 return -1;
             }
         } catch (NumberFormatException e) {
-            String groupName = argument;
-            for (Group g : client.getGroups()) {
-                if (g.name.equals(groupName)) {
-                    groupId = g.id;
-                }
+            Group g = client.getSnapshot().getGroup(argument);
+            if (g != null) {
+                groupId = g.id;
             }
         }
 
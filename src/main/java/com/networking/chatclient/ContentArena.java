@@ -0,0 +1,262 @@
+package com.networking.chatclient;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Keeps message content as UTF-8 bytes in direct buffers, outside the Java
+ * heap, so loaded history does not make garbage collection slower.
+ *
+ * Memory is taken from the system in chunks of CHUNK_SIZE bytes. Each chunk
+ * is cut into blocks of one size, and content is put in the smallest block it
+ * fits. There are four block sizes for every power of two from MIN_BLOCK_SIZE
+ * up to CHUNK_SIZE, so at most a fifth of a block is wasted. Freed blocks
+ * are reused for content of the same size class. A chunk whose blocks are all
+ * free is given back once its size class has free blocks in another chunk, so
+ * one block being freed and taken again does not give back and take a chunk
+ * each time; trim() gives back every chunk that is all free. Content larger
+ * than a chunk gets a buffer of its own, which is dropped when it is freed.
+ *
+ * Content is referred to by a handle: the chunk's index in the high 32 bits
+ * and the block's offset in the low 32 bits. The caller keeps the length.
+ *
+ * Not thread safe; ContentCache only uses it while holding its lock.
+ */
+public class ContentArena {
+    static final int CHUNK_SHIFT = 20;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int MIN_BLOCK_SHIFT = 6;
+    static final int MIN_BLOCK_SIZE = 1 << MIN_BLOCK_SHIFT;
+    static final int[] BLOCK_SIZES = blockSizes(); // Size of each size class, ascending
+    static final int CLASS_COUNT = BLOCK_SIZES.length;
+
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>(); // Null once given back
+    private int[] freeChunks = new int[8]; // Indexes of the null chunks
+    private int freeChunkCount = 0;
+    private int[] chunkClasses = new int[8]; // Size class of each chunk, -1 for a large buffer
+    private int[] chunkFreeCounts = new int[8]; // Free blocks in each chunk
+
+    private final long[][] freeBlocks = new long[CLASS_COUNT][]; // Handles of free blocks, per size class
+    private final int[] freeBlockCounts = new int[CLASS_COUNT];
+
+    private long reservedBytes = 0;
+    private long usedBytes = 0;
+
+    private static int[] blockSizes() {
+        int[] sizes = new int[(CHUNK_SHIFT - MIN_BLOCK_SHIFT) * 4 + 1];
+
+        for (int shift = MIN_BLOCK_SHIFT, i = 0; shift < CHUNK_SHIFT; shift++) {
+            for (int quarter = 4; quarter < 8; quarter++) {
+                sizes[i++] = (quarter << shift) / 4;
+            }
+        }
+        sizes[sizes.length - 1] = CHUNK_SIZE;
+
+        return sizes;
+    }
+
+    /*
+     * The size class for content of the given length, or -1 if it needs a
+     * buffer of its own.
+     */
+    static int sizeClass(int length) {
+        if (length > CHUNK_SIZE)
+            return -1;
+
+        int i = Arrays.binarySearch(BLOCK_SIZES, length);
+        return (i >= 0) ? i : -i - 1;
+    }
+
+    /*
+     * How many bytes of the arena content of the given length takes.
+     */
+    static long blockSize(int length) {
+        int sizeClass = sizeClass(length);
+        return (sizeClass >= 0) ? BLOCK_SIZES[sizeClass] : length;
+    }
+
+    /*
+     * Copies the content into the arena and returns its handle.
+     */
+    public long allocate(byte[] content) {
+        int sizeClass = sizeClass(content.length);
+        long handle;
+
+        if (sizeClass < 0) {
+            handle = (long) addChunk(ByteBuffer.allocateDirect(content.length), -1) << 32;
+        } else {
+            if (freeBlockCounts[sizeClass] == 0)
+                carveChunk(sizeClass);
+
+            handle = freeBlocks[sizeClass][--freeBlockCounts[sizeClass]];
+            chunkFreeCounts[(int) (handle >>> 32)]--;
+        }
+
+        chunks.get((int) (handle >>> 32)).put((int) handle, content);
+        usedBytes += blockSize(content.length);
+        return handle;
+    }
+
+    public long allocate(String content) {
+        return allocate(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Decodes the content with the given handle and length.
+     */
+    public String read(long handle, int length) {
+        byte[] bytes = new byte[length];
+        chunks.get((int) (handle >>> 32)).get((int) handle, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Gives the block back. The handle must not be used again.
+     */
+    public void free(long handle, int length) {
+        int sizeClass = sizeClass(length);
+        int index = (int) (handle >>> 32);
+        usedBytes -= blockSize(length);
+
+        if (sizeClass < 0) {
+            dropChunk(index);
+            return;
+        }
+
+        pushFreeBlock(sizeClass, handle);
+
+        // All free, and the size class has room elsewhere
+        int blocksPerChunk = CHUNK_SIZE / BLOCK_SIZES[sizeClass];
+        if (++chunkFreeCounts[index] == blocksPerChunk && freeBlockCounts[sizeClass] > blocksPerChunk)
+            releaseChunk(index);
+    }
+
+    /*
+     * Gives back every chunk whose blocks are all free, for example after the
+     * cache's budget was lowered.
+     */
+    public void trim() {
+        for (int index = 0; index < chunks.size(); index++) {
+            int sizeClass = chunkClasses[index];
+            if (chunks.get(index) != null && sizeClass >= 0
+                    && chunkFreeCounts[index] == CHUNK_SIZE / BLOCK_SIZES[sizeClass])
+                releaseChunk(index);
+        }
+    }
+
+    /*
+     * Takes the chunk's blocks off its size class's free list and gives the
+     * chunk back.
+     */
+    private void releaseChunk(int index) {
+        int sizeClass = chunkClasses[index];
+        long[] blocks = freeBlocks[sizeClass];
+        int count = freeBlockCounts[sizeClass];
+        int kept = 0;
+
+        for (int i = 0; i < count; i++) {
+            if ((int) (blocks[i] >>> 32) != index)
+                blocks[kept++] = blocks[i];
+        }
+        freeBlockCounts[sizeClass] = kept;
+
+        dropChunk(index);
+    }
+
+    private void dropChunk(int index) {
+        reservedBytes -= chunks.get(index).capacity();
+        chunks.set(index, null);
+        chunkFreeCounts[index] = 0;
+
+        if (freeChunkCount == freeChunks.length)
+            freeChunks = Arrays.copyOf(freeChunks, freeChunkCount * 2);
+        freeChunks[freeChunkCount++] = index;
+    }
+
+    /*
+     * Takes a new chunk and adds all of its blocks to the size class's free
+     * list.
+     */
+    private void carveChunk(int sizeClass) {
+        int index = addChunk(ByteBuffer.allocateDirect(CHUNK_SIZE), sizeClass);
+        int blockSize = BLOCK_SIZES[sizeClass];
+        chunkFreeCounts[index] = CHUNK_SIZE / blockSize;
+
+        // Pushed in reverse so blocks are handed out from the start of the chunk
+        for (int offset = (CHUNK_SIZE / blockSize - 1) * blockSize; offset >= 0; offset -= blockSize) {
+            pushFreeBlock(sizeClass, ((long) index << 32) | offset);
+        }
+    }
+
+    private void pushFreeBlock(int sizeClass, long handle) {
+        long[] blocks = freeBlocks[sizeClass];
+        int count = freeBlockCounts[sizeClass];
+
+        if (blocks == null) {
+            blocks = freeBlocks[sizeClass] = new long[CHUNK_SIZE / BLOCK_SIZES[sizeClass]];
+        } else if (count == blocks.length) {
+            blocks = freeBlocks[sizeClass] = Arrays.copyOf(blocks, count * 2);
+        }
+
+        blocks[count] = handle;
+        freeBlockCounts[sizeClass] = count + 1;
+    }
+
+    private int addChunk(ByteBuffer chunk, int sizeClass) {
+        reservedBytes += chunk.capacity();
+
+        int index;
+        if (freeChunkCount > 0) {
+            index = freeChunks[--freeChunkCount];
+            chunks.set(index, chunk);
+        } else {
+            chunks.add(chunk);
+            index = chunks.size() - 1;
+
+            if (index == chunkClasses.length) {
+                chunkClasses = Arrays.copyOf(chunkClasses, index * 2);
+                chunkFreeCounts = Arrays.copyOf(chunkFreeCounts, index * 2);
+            }
+        }
+
+        chunkClasses[index] = sizeClass;
+        chunkFreeCounts[index] = 0;
+        return index;
+    }
+
+    /*
+     * Drops every chunk. Every handle becomes invalid.
+     */
+    public void clear() {
+        chunks.clear();
+        freeChunkCount = 0;
+
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeBlocks[i] = null;
+            freeBlockCounts[i] = 0;
+        }
+
+        reservedBytes = 0;
+        usedBytes = 0;
+    }
+
+    /*
+     * Statistics
+     */
+
+    /*
+     * Bytes of direct memory held, including free blocks.
+     */
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /*
+     * Bytes in blocks that hold content.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+}
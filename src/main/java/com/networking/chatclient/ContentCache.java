@@ -0,0 +1,205 @@
+package com.networking.chatclient;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Holds the content of messages, up to a budget of bytes.
+ *
+ * When the budget is exceeded, the content that was read least recently is
+ * dropped, and the eviction listener is told, so the message no longer counts
+ * as loaded. Content that was dropped is loaded again (from the message store
+ * or the server) the next time it is retrieved.
+ *
+ * The content itself is kept as UTF-8 in a ContentArena, outside the Java
+ * heap; only a small entry with its handle and length is on the heap, and the
+ * String is decoded again on every get. The size of an entry is the arena
+ * block it takes plus a fixed overhead for the entry.
+ */
+public class ContentCache {
+    /*
+     * Called with the cache's lock held, so it must not wait for anything
+     * that reads the cache.
+     */
+    public interface EvictionListener {
+        void evicted(int groupId, int messageId);
+    }
+
+    static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    static final int ENTRY_OVERHEAD = 80; // Entry, Long key and map entry headers
+
+    /*
+     * Where an entry's content is in the arena.
+     */
+    private static final class Entry {
+        final long handle;
+        final int length;
+
+        Entry(long handle, int length) {
+            this.handle = handle;
+            this.length = length;
+        }
+    }
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(256, 0.75f, true); // LRU order
+    private final ContentArena arena = new ContentArena();
+    private long budget;
+    private long usedBytes = 0;
+    private volatile EvictionListener evictionListener;
+
+    // Statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ContentCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    public ContentCache(long budget) {
+        this.budget = budget;
+    }
+
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    static long key(int groupId, int messageId) {
+        return ((long) groupId << 32) | (messageId & 0xffffffffL);
+    }
+
+    static long sizeOf(Entry entry) {
+        return ENTRY_OVERHEAD + ContentArena.blockSize(entry.length);
+    }
+
+    /*
+     * Returns the content, or null if it is not cached.
+     */
+    public synchronized String get(int groupId, int messageId) {
+        Entry entry = entries.get(key(groupId, messageId));
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return arena.read(entry.handle, entry.length);
+    }
+
+    /*
+     * Whether the content is cached. Does not count as a read.
+     */
+    public synchronized boolean contains(int groupId, int messageId) {
+        return entries.containsKey(key(groupId, messageId));
+    }
+
+    /*
+     * Caches the content, dropping the least recently read content until the
+     * budget is met again. The content just added is kept even if it is larger
+     * than the whole budget, until the next put.
+     */
+    public synchronized void put(int groupId, int messageId, String content) {
+        long key = key(groupId, messageId);
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        Entry entry = new Entry(arena.allocate(bytes), bytes.length);
+        Entry previous = entries.put(key, entry);
+
+        if (previous != null)
+            drop(previous);
+        usedBytes += sizeOf(entry);
+
+        evict(key);
+    }
+
+    public synchronized void remove(int groupId, int messageId) {
+        Entry previous = entries.remove(key(groupId, messageId));
+
+        if (previous != null)
+            drop(previous);
+    }
+
+    /*
+     * Must hold the lock. Frees an entry that was taken out of the map.
+     */
+    private void drop(Entry entry) {
+        usedBytes -= sizeOf(entry);
+        arena.free(entry.handle, entry.length);
+    }
+
+    /*
+     * Must hold the lock. keep is the key that must not be dropped, or null.
+     */
+    private void evict(Long keep) {
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+
+        while (usedBytes > budget && it.hasNext()) {
+            Map.Entry<Long, Entry> eldest = it.next();
+            if (eldest.getKey().equals(keep))
+                continue;
+
+            it.remove();
+            drop(eldest.getValue());
+            evictions.incrementAndGet();
+
+            EvictionListener listener = evictionListener;
+            if (listener != null) {
+                long key = eldest.getKey();
+                listener.evicted((int) (key >> 32), (int) key);
+            }
+        }
+    }
+
+    /*
+     * Also gives back the arena's chunks that the evictions left empty.
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict(null);
+        arena.trim();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        arena.clear();
+        usedBytes = 0;
+    }
+
+    /*
+     * Statistics
+     */
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /*
+     * Bytes of direct memory the arena holds, including blocks that are free.
+     */
+    public synchronized long getOffHeapBytes() {
+        return arena.getReservedBytes();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+}
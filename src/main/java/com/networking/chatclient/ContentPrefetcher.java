@@ -0,0 +1,201 @@
+package com.networking.chatclient;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+import com.networking.chatclient.ChatClient.Message;
+
+/*
+ * Fetches the content of new messages in the background, so it is already
+ * loaded when the user opens them.
+ *
+ * Only messages in the focused group (the one the user is looking at) or in
+ * one of the groups focused recently are prefetched. At most maxInFlight
+ * prefetches are waiting for the server at a time; the rest wait in a queue
+ * of at most maxQueued messages, newest first, and the oldest are dropped
+ * when it is full. Focusing another group cancels the queued prefetches for
+ * the other groups. Prefetches already sent are left to finish.
+ *
+ * Prefetches go through retrieveMessageAsync, so content that is cached or
+ * stored is not asked for again, and a prefetch shares the request if the
+ * user opens the message while it is in flight.
+ */
+public class ContentPrefetcher {
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    static final int DEFAULT_RECENT_GROUPS = 3;
+    static final int DEFAULT_MAX_QUEUED = 256;
+
+    private final ChatClient client;
+    private int maxInFlight = 0; // 0 means prefetching is off
+    private int recentGroupCount = DEFAULT_RECENT_GROUPS;
+    private int maxQueued = DEFAULT_MAX_QUEUED;
+
+    private final ArrayDeque<Message> queue = new ArrayDeque<Message>(); // Newest last
+    private int[] recentGroups = new int[0]; // Most recently focused first
+    private int inFlight = 0;
+
+    // Statistics
+    private long started = 0;
+    private long cancelled = 0;
+    private long dropped = 0;
+
+    public ContentPrefetcher(ChatClient client) {
+        this.client = client;
+    }
+
+    /*
+     * maxInFlight of 0 turns prefetching off. recentGroupCount includes the
+     * focused group.
+     */
+    public synchronized void configure(int maxInFlight, int recentGroupCount, int maxQueued) {
+        if (maxInFlight < 0 || recentGroupCount < 1 || maxQueued < 1)
+            throw new IllegalArgumentException("Invalid prefetch limits");
+
+        this.maxInFlight = maxInFlight;
+        this.recentGroupCount = recentGroupCount;
+        this.maxQueued = maxQueued;
+
+        if (recentGroups.length > recentGroupCount)
+            recentGroups = Arrays.copyOf(recentGroups, recentGroupCount);
+
+        if (maxInFlight == 0) {
+            cancelled += queue.size();
+            queue.clear();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return maxInFlight > 0;
+    }
+
+    /*
+     * Makes the group the focused one, and cancels the queued prefetches for
+     * every other group.
+     */
+    public synchronized void focus(int groupId) {
+        if (recentGroups.length > 0 && recentGroups[0] == groupId)
+            return;
+
+        int[] updated = new int[Math.min(recentGroups.length + 1, recentGroupCount)];
+        updated[0] = groupId;
+        for (int i = 0, j = 1; i < recentGroups.length && j < updated.length; i++) {
+            if (recentGroups[i] != groupId)
+                updated[j++] = recentGroups[i];
+        }
+        recentGroups = updated;
+
+        Iterator<Message> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().groupId != groupId) {
+                it.remove();
+                cancelled++;
+            }
+        }
+    }
+
+    /*
+     * Called when a message's label arrives.
+     */
+    public void labelArrived(Message m) {
+        synchronized (this) {
+            if (maxInFlight == 0 || m.isLoaded() || !isRecent(m.groupId))
+                return;
+
+            if (queue.size() >= maxQueued) {
+                queue.pollFirst();
+                dropped++;
+            }
+            queue.addLast(m);
+        }
+
+        drain();
+    }
+
+    /*
+     * Must hold the lock.
+     */
+    private boolean isRecent(int groupId) {
+        for (int id : recentGroups) {
+            if (id == groupId)
+                return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Sends queued prefetches until maxInFlight are in flight.
+     */
+    private void drain() {
+        while (true) {
+            Message m;
+            synchronized (this) {
+                if (inFlight >= maxInFlight || queue.isEmpty())
+                    return;
+
+                m = queue.pollLast();
+                inFlight++;
+                started++;
+            }
+
+            CompletableFuture<Message> future = client.retrieveMessageAsync(m.groupId, m.messageId);
+
+            if (future.isDone()) { // Cached or stored, nothing was sent
+                finished();
+                continue;
+            }
+
+            future.whenComplete((result, e) -> {
+                finished();
+                drain();
+            });
+        }
+    }
+
+    private synchronized void finished() {
+        inFlight--;
+    }
+
+    /*
+     * Cancels every queued prefetch and forgets the focused groups, for
+     * example after logging out.
+     */
+    public synchronized void clear() {
+        cancelled += queue.size();
+        queue.clear();
+        recentGroups = new int[0];
+    }
+
+    /*
+     * Statistics
+     */
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    public synchronized long getStartedCount() {
+        return started;
+    }
+
+    /*
+     * How many queued prefetches were cancelled, because another group was
+     * focused or everything was cleared.
+     */
+    public synchronized long getCancelledCount() {
+        return cancelled;
+    }
+
+    /*
+     * How many were dropped because the queue was full.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+}
@@ -0,0 +1,178 @@
+package com.networking.chatclient;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Keeps one client's packets in order while handling them in parallel.
+ *
+ * Packets about a group always go to the same lane (groupId modulo the lane
+ * count). A lane runs its packets one at a time, in the order they arrived, so
+ * a group's notifications and labels are never reordered, while different
+ * lanes run at the same time on the PacketDispatcher's threads.
+ *
+ * Packets that are not about one group (VERIFY_USERNAME, SEND_GROUPS_LIST,
+ * ...) go through a barrier: they run once every lane has finished what was
+ * dispatched before them, and nothing dispatched after them starts until they
+ * are done. Lanes waiting at a barrier do not hold a thread.
+ *
+ * dispatch and dispatchBarrier must be called from one thread (the thread that
+ * reads the client's packets).
+ *
+ * Each packet is counted in the PacketDispatcher's statistics when it is
+ * queued here and when it starts, since a lane run handles many packets.
+ */
+public class DispatchLanes {
+    static final int DEFAULT_LANE_COUNT = 8;
+    static final int MAX_TASKS_PER_RUN = 64; // Lets other lanes have the thread once in a while
+
+    /*
+     * A packet waiting in a lane.
+     */
+    private static final class Packet {
+        final Runnable task;
+        final long queuedAt = System.nanoTime();
+
+        Packet(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    /*
+     * A packet that must run alone. Every lane gets a reference to the same
+     * barrier, and the last lane to reach it runs the task.
+     */
+    private class Barrier {
+        final Runnable task;
+        final long queuedAt = System.nanoTime();
+        final AtomicInteger waitingFor = new AtomicInteger(lanes.length);
+
+        Barrier(Runnable task) {
+            this.task = task;
+        }
+
+        /*
+         * Returns true for the last lane to arrive.
+         */
+        boolean arrive() {
+            return waitingFor.decrementAndGet() == 0;
+        }
+    }
+
+    private class Lane {
+        final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>(); // Packets and Barriers
+        final AtomicBoolean scheduled = new AtomicBoolean(false); // Also true while paused at a barrier
+
+        void add(Object task) {
+            queue.add(task);
+            pendingTasks.incrementAndGet();
+
+            if (scheduled.compareAndSet(false, true))
+                dispatcher.execute(this::run);
+        }
+
+        void run() {
+            int ran = 0;
+            Object task;
+
+            while ((task = queue.poll()) != null) {
+                pendingTasks.decrementAndGet();
+
+                if (task instanceof Barrier) {
+                    Barrier barrier = (Barrier) task;
+
+                    if (!barrier.arrive())
+                        return; // Paused (still scheduled) until the last lane resumes us
+
+                    runTask(barrier.task, barrier.queuedAt);
+                    resumeOtherLanes(this);
+                } else {
+                    Packet packet = (Packet) task;
+                    runTask(packet.task, packet.queuedAt);
+                }
+
+                if (++ran == MAX_TASKS_PER_RUN) {
+                    dispatcher.execute(this::run);
+                    return;
+                }
+            }
+
+            scheduled.set(false);
+
+            // A task may have been added after the queue looked empty
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+                dispatcher.execute(this::run);
+        }
+
+        /*
+         * Catches everything, even Errors: the lane stays scheduled until run
+         * returns normally, so a throw would stop it for good.
+         */
+        private void runTask(Runnable task, long queuedAt) {
+            dispatcher.packetStarted(System.nanoTime() - queuedAt);
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final PacketDispatcher dispatcher;
+    private final Lane[] lanes;
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+
+    public DispatchLanes(PacketDispatcher dispatcher) {
+        this(dispatcher, DEFAULT_LANE_COUNT);
+    }
+
+    public DispatchLanes(PacketDispatcher dispatcher, int laneCount) {
+        this.dispatcher = dispatcher;
+        this.lanes = new Lane[laneCount];
+
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /*
+     * Runs a task after every earlier task for the same group.
+     */
+    public void dispatch(int groupId, Runnable task) {
+        dispatcher.packetQueued();
+        lanes[Math.floorMod(groupId, lanes.length)].add(new Packet(task));
+    }
+
+    /*
+     * Runs a task after every earlier task, and before every later one.
+     */
+    public void dispatchBarrier(Runnable task) {
+        Barrier barrier = new Barrier(task);
+        dispatcher.packetQueued();
+
+        for (Lane lane : lanes) {
+            lane.add(barrier);
+        }
+    }
+
+    private void resumeOtherLanes(Lane current) {
+        for (Lane lane : lanes) {
+            if (lane != current)
+                dispatcher.execute(lane::run);
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /*
+     * How many tasks have been dispatched but not run. A barrier counts once
+     * per lane.
+     */
+    public int getPendingTasks() {
+        return pendingTasks.get();
+    }
+}
@@ -0,0 +1,256 @@
+package com.networking.chatclient;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A small set of I/O threads that service many connections.
+ *
+ * Each thread runs a Selector. Connections are spread over the threads when
+ * they are registered, and from then on the thread reads whatever arrives,
+ * decodes it with the connection's FrameDecoder, and finishes any writes that
+ * the connection's PacketWriter could not complete right away.
+ *
+ * A ChatClient uses one of these instead of its own response handler thread
+ * when it is given one with setEventLoopGroup, so one JVM can run thousands of
+ * clients on a few threads.
+ */
+public class EventLoopGroup {
+
+    /*
+     * Everything the event loop needs to know about one connection.
+     */
+    static class Connection {
+        final SocketChannel channel;
+        final FrameDecoder decoder;
+        final FrameDecoder.FrameHandler handler;
+        final PacketWriter writer;
+        final Runnable onClose;
+        final EventLoop loop;
+        SelectionKey key;
+        boolean closed = false; // Only used by the loop's thread
+
+        Connection(SocketChannel channel, FrameDecoder decoder, FrameDecoder.FrameHandler handler,
+                PacketWriter writer, Runnable onClose, EventLoop loop) {
+            this.channel = channel;
+            this.decoder = decoder;
+            this.handler = handler;
+            this.writer = writer;
+            this.onClose = onClose;
+            this.loop = loop;
+        }
+
+        /*
+         * Asks the event loop to tell the writer when the channel can be written
+         * to again. Can be called from any thread.
+         */
+        void requestWrite() {
+            setInterest(SelectionKey.OP_WRITE, true);
+        }
+
+        /*
+         * Stops or starts reading the channel, for example while too many of
+         * its packets are waiting to be handled. Can be called from any thread.
+         */
+        void pauseReading() {
+            setInterest(SelectionKey.OP_READ, false);
+        }
+
+        void resumeReading() {
+            setInterest(SelectionKey.OP_READ, true);
+        }
+
+        private void setInterest(int op, boolean on) {
+            loop.execute(() -> {
+                if (key != null && key.isValid())
+                    key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+            });
+        }
+    }
+
+    /*
+     * One I/O thread and its selector.
+     */
+    class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "EventLoop-" + index);
+            thread.setDaemon(true);
+        }
+
+        /*
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isWritable())
+                            handleWritable(connection);
+
+                        if (key.isValid() && key.isReadable())
+                            handleReadable(connection);
+                    } catch (IOException | CancelledKeyException e) {
+                        close(connection);
+                    } catch (RuntimeException e) {
+                        // A bug in one connection's handler must not stop the loop's other connections
+                        e.printStackTrace();
+                        close(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                close((Connection) key.attachment());
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void handleReadable(Connection connection) throws IOException {
+            int read = connection.channel.read(connection.decoder.getBuffer());
+
+            if (read < 0) {
+                close(connection);
+                return;
+            }
+
+            if (read > 0)
+                connection.decoder.decode(connection.handler);
+        }
+
+        private void handleWritable(Connection connection) throws IOException {
+            SelectionKey key = connection.key;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            // The writer asks for OP_WRITE again if it still has bytes left
+            connection.writer.writePending();
+        }
+
+        private void close(Connection connection) {
+            if (connection.closed)
+                return;
+
+            connection.closed = true;
+
+            if (connection.key != null)
+                connection.key.cancel();
+
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            connection.onClose.run();
+        }
+    }
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    public EventLoopGroup() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public EventLoopGroup(int threads) {
+        loops = new EventLoop[threads];
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new EventLoop(i);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open selector", e);
+        }
+
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /*
+     * Starts servicing a connected channel. The channel is switched to
+     * non-blocking mode. Frames are passed to handler on the loop's thread, and
+     * onClose runs once the channel has been closed.
+     */
+    public void register(SocketChannel channel, FrameDecoder decoder, FrameDecoder.FrameHandler handler,
+            PacketWriter writer, Runnable onClose) throws IOException {
+        register(channel, decoder, handler, writer, onClose, null);
+    }
+
+    /*
+     * Like register above. If a limiter is given, it pauses reading the
+     * channel while it has no permits left, instead of blocking the loop.
+     */
+    void register(SocketChannel channel, FrameDecoder decoder, FrameDecoder.FrameHandler handler,
+            PacketWriter writer, Runnable onClose, InboundLimiter limiter) throws IOException {
+        if (shutdown)
+            throw new IllegalStateException("EventLoopGroup has been shut down");
+
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        Connection connection = new Connection(channel, decoder, handler, writer, onClose, loop);
+
+        channel.configureBlocking(false);
+        writer.setWriteInterest(connection::requestWrite);
+        if (limiter != null)
+            limiter.setReadPause(connection::pauseReading, connection::resumeReading);
+
+        loop.execute(() -> {
+            try {
+                connection.key = channel.register(loop.selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                loop.close(connection);
+            }
+        });
+    }
+
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /*
+     * Closes every connection and stops the threads.
+     */
+    public void shutdown() {
+        shutdown = true;
+
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.networking.chatclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ * Splits the bytes coming from the server into packets.
+ *
+ * Bytes are read into one reusable direct buffer. In TEXT mode the buffer is
+ * scanned for the END constant (a null terminator) byte by byte. In BINARY
+ * mode every frame starts with its length, so the decoder can skip straight
+ * to the end of the frame. A packet that is split across several reads stays
+ * in the buffer until the rest of it arrives, and the buffer grows if a single
+ * packet is larger than it.
+ *
+ * Complete frames are handed to a FrameHandler as a view into the buffer
+ * (without the terminator or length prefix). The view is only valid for the
+ * duration of the call, so handlers must finish with it (or copy what they
+ * need) before returning. Handlers may change the mode; the change applies to
+ * the very next frame.
+ */
+public class FrameDecoder {
+    static final int DEFAULT_CAPACITY = 16 * 1024;
+    static final byte TERMINATOR = 0;
+    static final int LENGTH_SIZE = 4; // Size of a binary frame's length prefix
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    public interface FrameHandler {
+        void handleFrame(ByteBuffer frame);
+    }
+
+    private ByteBuffer buffer; // Holds received bytes; always in write mode between calls
+    private ByteBuffer frameView; // A reusable view of buffer that is passed to the handler
+    private int scanned = 0; // How many bytes at the start of buffer are known not to be a terminator
+    private volatile ClientProtocol.FramingMode mode = ClientProtocol.FramingMode.TEXT;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameDecoder(int capacity) {
+        setBuffer(ByteBuffer.allocateDirect(capacity));
+    }
+
+    /*
+     * Reads whatever is available from the channel and hands every complete
+     * frame to the handler.
+     *
+     * Returns false once the channel has reached end of stream.
+     */
+    public boolean readFrom(ReadableByteChannel channel, FrameHandler handler) throws IOException {
+        if (!buffer.hasRemaining())
+            grow();
+
+        int read = channel.read(buffer);
+        if (read < 0)
+            return false;
+
+        decode(handler);
+        return true;
+    }
+
+    /*
+     * Hands every complete frame in the buffer to the handler, then moves any
+     * partial frame to the start of the buffer.
+     */
+    public void decode(FrameHandler handler) throws IOException {
+        buffer.flip();
+
+        int frameStart = 0;
+        int limit = buffer.limit();
+
+        while (frameStart < limit) {
+            int frameEnd = (mode == ClientProtocol.FramingMode.BINARY)
+                    ? decodeBinaryFrame(frameStart, limit, handler)
+                    : decodeTextFrame(frameStart, limit, handler);
+
+            if (frameEnd < 0)
+                break; // Partial frame
+
+            frameStart = frameEnd;
+        }
+
+        scanned = (mode == ClientProtocol.FramingMode.TEXT) ? limit - frameStart : 0;
+
+        buffer.position(frameStart);
+        buffer.compact();
+    }
+
+    /*
+     * Finds the next null terminated frame. Returns where the next frame starts,
+     * or -1 if the frame is not complete yet.
+     */
+    private int decodeTextFrame(int frameStart, int limit, FrameHandler handler) {
+        for (int i = frameStart + scanned; i < limit; i++) {
+            if (buffer.get(i) != TERMINATOR)
+                continue;
+
+            scanned = 0;
+
+            if (i > frameStart) { // Skip empty frames
+                frameView.limit(i).position(frameStart);
+                handler.handleFrame(frameView);
+            }
+
+            return i + 1;
+        }
+
+        scanned = limit - frameStart;
+        return -1;
+    }
+
+    /*
+     * Reads the next length prefixed frame. Returns where the next frame starts,
+     * or -1 if the frame is not complete yet.
+     */
+    private int decodeBinaryFrame(int frameStart, int limit, FrameHandler handler) throws IOException {
+        if (limit - frameStart < LENGTH_SIZE)
+            return -1;
+
+        int length = buffer.getInt(frameStart);
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length " + length);
+
+        int frameEnd = frameStart + LENGTH_SIZE + length;
+        if (frameEnd > limit) {
+            ensureCapacity(LENGTH_SIZE + length);
+            return -1;
+        }
+
+        frameView.limit(frameEnd).position(frameStart + LENGTH_SIZE);
+        handler.handleFrame(frameView);
+
+        return frameEnd;
+    }
+
+    public ClientProtocol.FramingMode getMode() {
+        return mode;
+    }
+
+    public void setMode(ClientProtocol.FramingMode mode) {
+        this.mode = mode;
+    }
+
+    /*
+     * Exposes the buffer so that other transports can read into it directly.
+     * The buffer must be left in write mode.
+     */
+    ByteBuffer getBuffer() {
+        if (!buffer.hasRemaining())
+            grow();
+
+        return buffer;
+    }
+
+    /*
+     * Doubles the size of the buffer, keeping any partial frame.
+     */
+    private void grow() {
+        resize(buffer.capacity() * 2);
+    }
+
+    /*
+     * Makes sure a frame of the given size will fit once the buffer is compacted.
+     * Only called while the buffer is in read mode.
+     */
+    private void ensureCapacity(int frameSize) {
+        if (frameSize <= buffer.capacity())
+            return;
+
+        int capacity = buffer.capacity();
+        while (capacity < frameSize)
+            capacity *= 2;
+
+        // Switch back to read mode over the same bytes once resized
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.position(limit).limit(buffer.capacity());
+        resize(capacity);
+        buffer.flip();
+        buffer.position(position);
+    }
+
+    private void resize(int capacity) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        setBuffer(larger);
+    }
+
+    private void setBuffer(ByteBuffer newBuffer) {
+        buffer = newBuffer;
+        frameView = buffer.duplicate();
+    }
+}
@@ -1,9 +1,6 @@
 package com.networking.chatclient;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableColumn;
 import javax.swing.table.TableColumnModel;
 import javax.swing.*;
@@ -23,6 +20,9 @@ class GraphicalInterface extends UserInterface {
 
     public GraphicalInterface(ChatClient client) {
         super(client);
+
+        // Messages are opened by clicking on them, so have their content ready
+        client.setPrefetch(ContentPrefetcher.DEFAULT_MAX_IN_FLIGHT, ContentPrefetcher.DEFAULT_RECENT_GROUPS);
     }
 
     @Override
@@ -238,7 +238,7 @@ class ChatFrame extends JFrame {
         messageList = new MessageListPanel();
         client.receiveMessageLabelEvent.onEvent((payload) -> {
             messageList.tryAddMessageLabel(payload.labelMessage);
-        });
+        }, SwingUtilities::invokeLater);
 
         // Set initial state
         setSelectedGroup(client.getGroups()[0]);
@@ -280,6 +280,7 @@ class ChatFrame extends JFrame {
 
         // Retrieve Groups
         client.retrieveGroups();
+        ClientState.Snapshot snapshot = client.getSnapshot();
 
         // Create all groups holder panel
         allGroupsPanel = new JPanel();
@@ -289,7 +290,7 @@ class ChatFrame extends JFrame {
 
         // Create the model for the all groups list
         allGroupsListModel = new DefaultListModel<Group>();
-        allGroupsListModel.addAll(Arrays.asList(client.getGroups())); // add all possible groups
+        allGroupsListModel.addAll(snapshot.getGroups()); // add all possible groups
 
         // Create the all groups list
         allGroupsList = new JList<Group>(allGroupsListModel);
@@ -326,8 +327,8 @@ class ChatFrame extends JFrame {
 
         // Create the model for the user groups list
         userGroupsListModel = new DefaultListModel<Group>();
-        for (int id : client.getUserGroups()) { // Add every group the client is already a part of
-            userGroupsListModel.addElement(client.getGroup(id));
+        for (Group g : snapshot.getUserGroups()) { // Add every group the client is already a part of
+            userGroupsListModel.addElement(g);
         }
 
         // Create the user groups list
@@ -370,7 +371,7 @@ class ChatFrame extends JFrame {
 
         // Create the model for the users list
         usersListModel = new DefaultListModel<String>();
-        usersListModel.addAll(client.getGroup(0).users);
+        usersListModel.addAll(client.getGroup(0).getUsers());
 
         // Create the all groups list
         usersList = new JList<String>(usersListModel);
@@ -389,12 +390,12 @@ class ChatFrame extends JFrame {
             if (payload.group != null && payload.group.id == selectedGroup.id) {
                 usersListModel.addElement(payload.username);
             }
-        });
+        }, SwingUtilities::invokeLater);
         client.userLeaveEvent.onEvent((payload) -> {
             if (payload.group != null && payload.group.id == selectedGroup.id) {
                 usersListModel.removeElement(payload.username);
             }
-        });
+        }, SwingUtilities::invokeLater);
 
         // Create Panes and add panels
         topGroupPane = new JSplitPane();
@@ -467,8 +468,8 @@ class ChatFrame extends JFrame {
 
                 ReceiveMessageLabelEventPayload payload = null;
 
-                while (payload == null || !payload.labelMessage.username.equals(client.getUsername())
-                        || !payload.labelMessage.subject.equals(subject)
+                while (payload == null || !payload.labelMessage.getUsername().equals(client.getUsername())
+                        || !payload.labelMessage.getSubject().equals(subject)
                         || payload.labelMessage.groupId != id) {
                     payload = client.receiveMessageLabelEvent.waitForEvent();
                 }
@@ -722,9 +723,14 @@ class ChatFrame extends JFrame {
 
         messageReadFeeback.setText("Loading");
 
-        m = client.retrieveMessage(m.groupId, m.messageId);
+        m.getContentAsync().handleAsync((content, e) -> {
+            showMessage(m, content);
+            return null;
+        }, SwingUtilities::invokeLater);
+    }
 
-        if (m != null) {
+    private void showMessage(Message m, String content) {
+        if (content != null) {
             Group g = client.getGroup(m.groupId);
 
             messageReadFeeback.setText("Message Successfully Loaded");
@@ -732,9 +738,9 @@ class ChatFrame extends JFrame {
             if (g != null) {
                 groupDisplayField.setText(g.name);
                 idDisplayField.setText(String.valueOf(m.messageId));
-                userDisplayField.setText(m.username);
-                subjectDisplayField.setText(m.subject);
-                contentDisplayField.setText(m.getContent());
+                userDisplayField.setText(m.getUsername());
+                subjectDisplayField.setText(m.getSubject());
+                contentDisplayField.setText(content);
             } else {
                 messageReadFeeback.setText("Something went wrong");
             }
@@ -746,16 +752,21 @@ class ChatFrame extends JFrame {
     private void setSelectedGroup(Group newGroup) {
         selectedGroup = newGroup;
         messageList.setSelectedGroup(newGroup);
+        if (newGroup != null)
+            client.setFocusedGroup(newGroup.id);
 
         usersListModel.removeAllElements();
         if (newGroup != null) {
-            usersListModel.addAll(newGroup.users);
+            usersListModel.addAll(newGroup.getUsers());
         }
     }
 }
 
 /*
  * The central panel that lists all of the messages in a group
+ *
+ * The table reads straight from a sorted view of the group's labels, so
+ * nothing is copied when a group is selected or a label arrives.
  */
 class MessageListPanel extends JPanel {
 
@@ -766,8 +777,48 @@ class MessageListPanel extends JPanel {
     private JLabel header;
 
     private JTable messageTable;
-    private DefaultTableModel tableModel;
-    private ArrayList<Message> messages = new ArrayList<>();
+    private MessageTableModel tableModel;
+    private MessageLabels.View messages = null;
+    private boolean refreshQueued = false; // Labels arrive in bursts, so refresh once per burst
+
+    /*
+     * Shows the rows of the current view.
+     */
+    private class MessageTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int getRowCount() {
+            return (messages != null) ? messages.size() : 0;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return tableHeaders.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return tableHeaders[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            switch (column) {
+                case 0:
+                    return messages.getUsername(row);
+                case 1:
+                    return messages.getPostDate(row);
+                default:
+                    return messages.getSubject(row);
+            }
+        }
+
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    }
 
     public MessageListPanel() {
         super(new BorderLayout());
@@ -775,12 +826,7 @@ class MessageListPanel extends JPanel {
         header = new JLabel("Messages", SwingConstants.CENTER);
         add(header, BorderLayout.NORTH);
 
-        tableModel = new DefaultTableModel(tableHeaders, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new MessageTableModel();
 
         messageTable = new JTable(tableModel);
         messageTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -806,30 +852,42 @@ class MessageListPanel extends JPanel {
     }
 
     public void updateTable() {
-        if (selectedGroup != null) {
-            String[][] tableData = new String[selectedGroup.messages.size()][3];
-
-            messages = new ArrayList<Message>(selectedGroup.messages.values());
-
-            for (int i = 0; i < messages.size(); i++) {
-                Message m = messages.get(i);
-                tableData[i][0] = m.username;
-                tableData[i][1] = m.postDate;
-                tableData[i][2] = m.subject;
-            }
-
-            tableModel.setDataVector(tableData, tableHeaders);
-        } else {
-            tableModel.setDataVector(new String[0][0], tableHeaders);
-        }
+        messages = (selectedGroup != null) ? selectedGroup.messages.sortedView() : null;
+        tableModel.fireTableDataChanged();
 
         setColumnWidths(0.15, 0.15, 0.7);
     }
 
+    /*
+     * Called on the event dispatch thread for every label that arrives.
+     */
     public void tryAddMessageLabel(Message m) {
-        if (m.groupId == selectedGroup.id) {
-            tableModel.addRow(new String[] { m.username, m.postDate, m.subject });
-            messages.add(m);
+        if (selectedGroup == null || m.groupId != selectedGroup.id || refreshQueued)
+            return;
+
+        // Runs after the rest of the burst's labels, which are already queued
+        refreshQueued = true;
+        SwingUtilities.invokeLater(() -> {
+            refreshQueued = false;
+            refreshKeepingSelection();
+        });
+    }
+
+    private void refreshKeepingSelection() {
+        int row = messageTable.getSelectedRow();
+        int selectedId = (row != -1) ? messages.getMessageId(row) : -1;
+
+        messages = (selectedGroup != null) ? selectedGroup.messages.sortedView() : null;
+        tableModel.fireTableDataChanged();
+
+        if (selectedId == -1 || messages == null)
+            return;
+
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.getMessageId(i) == selectedId) {
+                messageTable.setRowSelectionInterval(i, i);
+                return;
+            }
         }
     }
 
@@ -839,7 +897,7 @@ class MessageListPanel extends JPanel {
 
     public Message getSelectedMessage() {
         int row = messageTable.getSelectedRow();
-        return messages.get(row);
+        return selectedGroup.getMessage(messages.getMessageId(row));
     }
 
     public void setColumnWidths(double... widthPercentages) {
@@ -0,0 +1,153 @@
+package com.networking.chatclient;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import com.networking.chatclient.ChatClient.Group;
+
+/*
+ * Decides when the group list has to be fetched from the server again.
+ *
+ * Groups are never removed by the server, so a known id stays known. An id
+ * that was not in the last list fetched is treated as unknown until the list
+ * is older than the TTL, instead of fetching the list again for every lookup.
+ * Refreshes asked for while one is in flight share it.
+ *
+ * Nothing here blocks. Packets about a group that is not known yet get a
+ * placeholder group (no name) that the next group list fills in.
+ */
+public class GroupDirectory {
+    static final long DEFAULT_TTL_MILLIS = 30000;
+
+    private final ClientState state;
+    private final Supplier<CompletableFuture<ArrayList<Group>>> fetch; // Sends GROUP LIST
+    private final AtomicReference<CompletableFuture<ArrayList<Group>>> inFlight = new AtomicReference<CompletableFuture<ArrayList<Group>>>();
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+    private volatile long fetchedAt; // nanoTime of the last successful fetch
+    private volatile boolean fetched = false;
+
+    // Statistics
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    public GroupDirectory(ClientState state, Supplier<CompletableFuture<ArrayList<Group>>> fetch) {
+        this.state = state;
+        this.fetch = fetch;
+    }
+
+    public void setTtl(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /*
+     * Whether the last group list fetched is recent enough to trust that an
+     * id missing from it does not exist.
+     */
+    private boolean isFresh() {
+        return fetched && System.nanoTime() - fetchedAt < ttlNanos;
+    }
+
+    /*
+     * Forgets when the list was last fetched, for example after logging out.
+     */
+    public void invalidate() {
+        fetched = false;
+    }
+
+    /*
+     * Fetches the group list, or joins the fetch already in flight.
+     */
+    public CompletableFuture<ArrayList<Group>> refresh() {
+        while (true) {
+            CompletableFuture<ArrayList<Group>> current = inFlight.get();
+            if (current != null) {
+                coalesced.incrementAndGet();
+                return current;
+            }
+
+            CompletableFuture<ArrayList<Group>> future = new CompletableFuture<ArrayList<Group>>();
+            if (!inFlight.compareAndSet(null, future))
+                continue;
+
+            refreshes.incrementAndGet();
+            fetch.get().whenComplete((groups, e) -> {
+                if (e == null) {
+                    fetchedAt = System.nanoTime();
+                    fetched = true;
+                }
+
+                inFlight.compareAndSet(future, null);
+
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(groups);
+                }
+            });
+
+            return future;
+        }
+    }
+
+    /*
+     * Completes with whether the server has the group. Only asks the server if
+     * the group is not known and the last list is out of date.
+     */
+    public CompletableFuture<Boolean> exists(int groupId) {
+        if (state.hasGroup(groupId))
+            return CompletableFuture.completedFuture(true);
+
+        if (isFresh()) {
+            negativeHits.incrementAndGet();
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return refresh().thenApply((groups) -> state.hasGroup(groupId));
+    }
+
+    /*
+     * Returns the group, adding a placeholder for it if it is not known (and
+     * refreshing the list in the background so it gets a name). For packets
+     * that show the group exists, so never returns null.
+     */
+    public Group getOrPlaceholder(int groupId, Supplier<Group> placeholder) {
+        Group g = state.getGroup(groupId);
+        if (g != null)
+            return g;
+
+        g = state.addGroup(placeholder.get());
+        refresh(); // The list we have is missing it, however old it is
+
+        return g;
+    }
+
+    /*
+     * Statistics
+     */
+
+    /*
+     * How many times the group list was actually fetched.
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /*
+     * How many refreshes joined one that was already in flight.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /*
+     * How many lookups of unknown ids were answered without asking the server.
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+}
@@ -0,0 +1,176 @@
+package com.networking.chatclient;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Limits how many received packets can be waiting to be handled.
+ *
+ * The thread that reads a connection asks for a permit before dispatching each
+ * packet, and the permit is given back once the packet has been handled. What
+ * happens when there are no permits left depends on the policy:
+ *
+ * BLOCK: the reading thread waits. The socket is not read in the meantime, so
+ * the server is slowed down by TCP flow control. On an EventLoopGroup the
+ * thread cannot wait without holding up other connections, so the packet is
+ * admitted anyway and reading the connection is paused until a permit comes
+ * back; only what was already read goes over the capacity.
+ *
+ * DROP_NOTIFICATIONS: USER_JOIN_NOTIF and USER_LEAVE_NOTIF are dropped, every
+ * other packet waits like BLOCK.
+ *
+ * COALESCE_NOTIFICATIONS: like DROP_NOTIFICATIONS, but the client asks the
+ * server for the group's whole user list instead, once per group, so the users
+ * it knows about catch up once the load goes down.
+ *
+ * FAIL_FAST: the connection is closed. Only used if asked for.
+ */
+public class InboundLimiter {
+    static final int DEFAULT_CAPACITY = 4096;
+
+    public enum OverloadPolicy {
+        BLOCK,
+        DROP_NOTIFICATIONS,
+        COALESCE_NOTIFICATIONS,
+        FAIL_FAST
+    }
+
+    public enum Admission {
+        ADMITTED, // Call release once the packet has been handled
+        DROPPED,
+        OVERLOADED // Only with FAIL_FAST
+    }
+
+    /*
+     * A Semaphore that can lend a permit it does not have.
+     */
+    private static final class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits);
+        }
+
+        void overdraw() {
+            reducePermits(1);
+        }
+    }
+
+    private final int capacity;
+    private final OverloadPolicy policy;
+    private final Permits permits;
+
+    // Only set when reading is driven by an event loop
+    private volatile Runnable pauseReading;
+    private volatile Runnable resumeReading;
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+
+    // Statistics
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    public InboundLimiter(int capacity, OverloadPolicy policy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+
+        this.capacity = capacity;
+        this.policy = policy;
+        this.permits = new Permits(capacity);
+    }
+
+    /*
+     * Makes waiting for a permit pause reading instead of blocking the
+     * reading thread. Both are run from any thread, and should ask the event
+     * loop to stop or start reading the connection.
+     */
+    void setReadPause(Runnable pauseReading, Runnable resumeReading) {
+        this.resumeReading = resumeReading;
+        this.pauseReading = pauseReading;
+    }
+
+    /*
+     * Gets a permit for a received packet. notification is whether the packet
+     * is one that the policy allows to be dropped.
+     */
+    public Admission admit(boolean notification) {
+        if (!permits.tryAcquire()) {
+            if (policy == OverloadPolicy.FAIL_FAST)
+                return Admission.OVERLOADED;
+
+            if (notification && policy != OverloadPolicy.BLOCK) {
+                dropped.incrementAndGet();
+                return Admission.DROPPED;
+            }
+
+            blocked.incrementAndGet();
+
+            Runnable pauseReading = this.pauseReading;
+            if (pauseReading != null) {
+                // Paused before overdrawing, so the release that brings the permits back sees it
+                if (paused.compareAndSet(false, true))
+                    pauseReading.run();
+                permits.overdraw();
+            } else {
+                permits.acquireUninterruptibly();
+            }
+        }
+
+        int depth = getDepth();
+        int max;
+        while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth)) {
+        }
+
+        return Admission.ADMITTED;
+    }
+
+    /*
+     * Gives back the permit of a packet that has been handled.
+     */
+    public void release() {
+        permits.release();
+
+        if (paused.get() && permits.availablePermits() > 0 && paused.compareAndSet(true, false))
+            resumeReading.run();
+    }
+
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /*
+     * Statistics
+     */
+
+    /*
+     * How many packets are waiting to be handled, or being handled.
+     */
+    public int getDepth() {
+        return capacity - permits.availablePermits();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /*
+     * How many notifications were dropped (or coalesced).
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /*
+     * How many times the reading thread had to wait for a permit, or reading
+     * was paused for one.
+     */
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+}
@@ -0,0 +1,300 @@
+package com.networking.chatclient;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntFunction;
+
+/*
+ * A thread safe map from int to object that does not box its keys.
+ *
+ * Keys and values are kept in two parallel arrays (open addressing with linear
+ * probing), so an entry costs 4 bytes for the key and a reference for the value
+ * instead of a node, an Integer and a reference.
+ *
+ * Reads are optimistic: they look at the table without locking and only retry
+ * under the read lock if a write happened at the same time. Writes take the
+ * write lock. Null values are not allowed.
+ */
+public class IntObjectMap<V> {
+    static final int DEFAULT_CAPACITY = 16;
+    static final float LOAD_FACTOR = 0.5f;
+
+    /*
+     * The arrays are replaced together when the table grows, so a reader
+     * always sees a key array and a value array of the same length.
+     */
+    private static final class Table {
+        final int[] keys;
+        final Object[] values; // Null marks an empty slot
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    private volatile int size = 0;
+
+    public IntObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        table = new Table(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize)
+            capacity <<= 1;
+
+        return capacity;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9; // Spreads sequential ids over the table
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Returns the slot holding key, or -1. Bounded by the table length so it
+     * ends even if the table is changed while an optimistic read is looking at
+     * it.
+     */
+    private static int find(Table t, int key) {
+        int mask = t.keys.length - 1;
+        int i = hash(key) & mask;
+
+        for (int probes = 0; probes < t.keys.length; probes++) {
+            if (t.values[i] == null)
+                return -1;
+            if (t.keys[i] == key)
+                return i;
+
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Table t = table;
+            int i = find(t, key);
+            Object value = (i < 0) ? null : t.values[i];
+
+            if (lock.validate(stamp))
+                return (V) value;
+        }
+
+        stamp = lock.readLock();
+        try {
+            Table t = table;
+            int i = find(t, key);
+            return (i < 0) ? null : (V) t.values[i];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /*
+     * Returns the previous value, or null.
+     */
+    public V put(int key, V value) {
+        return put(key, value, false);
+    }
+
+    /*
+     * Adds the value unless the key already has one. Returns the existing
+     * value, or null if it was added.
+     */
+    public V putIfAbsent(int key, V value) {
+        return put(key, value, true);
+    }
+
+    /*
+     * Returns the key's value, adding the one made by create if it has none.
+     */
+    public V computeIfAbsent(int key, IntFunction<V> create) {
+        V value = get(key);
+        if (value != null)
+            return value;
+
+        value = create.apply(key);
+        V existing = putIfAbsent(key, value);
+        return (existing != null) ? existing : value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(int key, V value, boolean onlyIfAbsent) {
+        if (value == null)
+            throw new NullPointerException("IntObjectMap does not allow null values");
+
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int i = find(t, key);
+
+            if (i >= 0) {
+                V previous = (V) t.values[i];
+                if (!onlyIfAbsent)
+                    t.values[i] = value;
+                return previous;
+            }
+
+            if (size + 1 > t.keys.length * LOAD_FACTOR) {
+                t = resize(t.keys.length << 1);
+            }
+
+            insert(t, key, value);
+            size++;
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static void insert(Table t, int key, Object value) {
+        int mask = t.keys.length - 1;
+        int i = hash(key) & mask;
+
+        while (t.values[i] != null)
+            i = (i + 1) & mask;
+
+        t.keys[i] = key;
+        t.values[i] = value;
+    }
+
+    /*
+     * Must hold the write lock.
+     */
+    private Table resize(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity);
+
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.values[i] != null)
+                insert(t, old.keys[i], old.values[i]);
+        }
+
+        table = t;
+        return t;
+    }
+
+    /*
+     * Returns the removed value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int i = find(t, key);
+            if (i < 0)
+                return null;
+
+            V previous = (V) t.values[i];
+            deleteSlot(t, i);
+            size--;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * Empties a slot and moves later entries of the same probe run back, so
+     * lookups never need tombstones.
+     */
+    private static void deleteSlot(Table t, int slot) {
+        int mask = t.keys.length - 1;
+        int gap = slot;
+        int i = slot;
+
+        while (true) {
+            i = (i + 1) & mask;
+            if (t.values[i] == null)
+                break;
+
+            int home = hash(t.keys[i]) & mask;
+
+            // Move the entry into the gap if the gap is between its home and it
+            boolean movable = (i > gap) ? (home <= gap || home > i) : (home <= gap && home > i);
+            if (movable) {
+                t.keys[gap] = t.keys[i];
+                t.values[gap] = t.values[i];
+                gap = i;
+            }
+        }
+
+        t.values[gap] = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*
+     * A copy of the values, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values() {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            ArrayList<V> values = new ArrayList<V>(size);
+
+            for (Object value : t.values) {
+                if (value != null)
+                    values.add((V) value);
+            }
+
+            return values;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * A copy of the keys, in no particular order.
+     */
+    public int[] keys() {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            int[] keys = new int[size];
+            int n = 0;
+
+            for (int i = 0; i < t.keys.length; i++) {
+                if (t.values[i] != null)
+                    keys[n++] = t.keys[i];
+            }
+
+            return keys;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            table = new Table(DEFAULT_CAPACITY);
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.networking.chatclient;
+
+import java.util.Arrays;
+
+/*
+ * A thread safe set of ints, such as the ids of the groups a user is in.
+ *
+ * Small non-negative values (below BITSET_LIMIT) are stored as a bitset. Any
+ * other value is kept in a sorted array instead, so one large or negative id
+ * does not make the bitset huge.
+ *
+ * Reads do not lock: every change replaces the words (or the array) with an
+ * updated copy. That suits sets which are read far more often than they
+ * change.
+ */
+public class IntSet {
+    static final int BITSET_LIMIT = 1 << 16; // At most 8KB of words
+
+    private static final long[] EMPTY = new long[0];
+    private static final int[] NO_OTHERS = new int[0];
+
+    private volatile long[] words = EMPTY;
+    private volatile int[] others = NO_OTHERS; // Values outside the bitset, sorted
+
+    private static boolean inBitset(int value) {
+        return value >= 0 && value < BITSET_LIMIT;
+    }
+
+    public boolean contains(int value) {
+        if (!inBitset(value))
+            return Arrays.binarySearch(others, value) >= 0;
+
+        long[] w = words;
+        int index = value >>> 6;
+        return index < w.length && (w[index] & (1L << value)) != 0;
+    }
+
+    /*
+     * Returns false if the value was already in the set.
+     */
+    public synchronized boolean add(int value) {
+        if (!inBitset(value)) {
+            int[] o = others;
+            int i = Arrays.binarySearch(o, value);
+            if (i >= 0)
+                return false;
+
+            i = -i - 1;
+            int[] updated = new int[o.length + 1];
+            System.arraycopy(o, 0, updated, 0, i);
+            updated[i] = value;
+            System.arraycopy(o, i, updated, i + 1, o.length - i);
+            others = updated;
+            return true;
+        }
+
+        if (contains(value))
+            return false;
+
+        int index = value >>> 6;
+        long[] updated = Arrays.copyOf(words, Math.max(words.length, index + 1));
+        updated[index] |= 1L << value;
+        words = updated;
+        return true;
+    }
+
+    /*
+     * Returns false if the value was not in the set.
+     */
+    public synchronized boolean remove(int value) {
+        if (!inBitset(value)) {
+            int[] o = others;
+            int i = Arrays.binarySearch(o, value);
+            if (i < 0)
+                return false;
+
+            int[] updated = Arrays.copyOf(o, o.length - 1);
+            System.arraycopy(o, i + 1, updated, i, o.length - i - 1);
+            others = updated;
+            return true;
+        }
+
+        if (!contains(value))
+            return false;
+
+        long[] updated = words.clone();
+        updated[value >>> 6] &= ~(1L << value);
+        words = updated;
+        return true;
+    }
+
+    public int size() {
+        return size(words) + others.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /*
+     * The values, in increasing order.
+     */
+    public int[] toArray() {
+        long[] w = words;
+        int[] o = others;
+        int[] values = new int[size(w) + o.length];
+        int n = 0;
+
+        // Negative values come before the bitset, large ones after it
+        int j = 0;
+        while (j < o.length && o[j] < 0)
+            values[n++] = o[j++];
+
+        for (int i = 0; i < w.length; i++) {
+            long word = w[i];
+            while (word != 0) {
+                values[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+
+        while (j < o.length)
+            values[n++] = o[j++];
+
+        return values;
+    }
+
+    private static int size(long[] w) {
+        int size = 0;
+        for (long word : w)
+            size += Long.bitCount(word);
+
+        return size;
+    }
+
+    public synchronized void clear() {
+        words = EMPTY;
+        others = NO_OTHERS;
+    }
+}
@@ -0,0 +1,665 @@
+package com.networking.chatclient;
+
+import java.util.Arrays;
+
+/*
+ * The message labels of one group, stored by column instead of as one object
+ * per label, so groups with millions of labels stay small and can be listed
+ * without copying.
+ *
+ * Each label is a row. A row has the message id, the post date (as in
+ * Message: microseconds plus a format, or if it could not be parsed, where
+ * its text is in the group's own list of such dates), the symbol id of the
+ * username, where the subject is in one shared char array, and whether the
+ * content has been loaded. Rows are only ever appended; a label that arrives
+ * again for the same id updates its row.
+ *
+ * A subject that is rewritten longer than before (unless it is the last one in
+ * the array) gets new space at the end. The space it leaves is reclaimed by
+ * compacting the array when it is full and at least half of it is unused. The
+ * list of unparsed post dates is compacted the same way.
+ *
+ * Rows are found by message id through an open addressing index. A View lists
+ * rows in arrival order or sorted by post date, and can be narrowed to a date
+ * range. The sorted order is kept between calls, and only the rows added since
+ * are sorted. Rows newer than every sorted one are appended to the sorted
+ * array in place. Others are merged into a short sorted tail, which views read
+ * alongside the sorted array, and the tail is only merged into a new sorted
+ * array once it is an eighth of its size, so a refresh does not copy them all.
+ *
+ * Every method locks the labels, so they can be appended to by the packet
+ * handler while the user interface reads them.
+ */
+public class MessageLabels {
+    static final int INITIAL_CAPACITY = 16;
+    static final int MIN_TAIL_MERGE = 64; // Fewest tail rows that are merged into the sorted array
+    private static final byte LOADED = 1;
+
+    /*
+     * A list of rows. Reads go to the labels, so a view shows updates to the
+     * rows it has, but not rows added after it was made.
+     */
+    public static final class View {
+        private final MessageLabels labels;
+        private final int[] rows; // Null for arrival order
+        private final int[] tail; // Sorted rows that go between rows, or null
+        private final int[] tailPositions; // For each tail row, the index in rows it goes before
+        private final int tailCount;
+        private final int from;
+        private final int size;
+
+        private View(MessageLabels labels, int[] rows, int[] tail, int[] tailPositions, int tailCount, int from,
+                int size) {
+            this.labels = labels;
+            this.rows = rows;
+            this.tail = tail;
+            this.tailPositions = tailPositions;
+            this.tailCount = tailCount;
+            this.from = from;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private int row(int i) {
+            if (i < 0 || i >= size)
+                throw new IndexOutOfBoundsException("Index " + i + " out of bounds for size " + size);
+
+            if (rows == null)
+                return from + i;
+
+            int index = from + i;
+            if (tailCount == 0)
+                return rows[index];
+
+            // How many tail rows come at or before index. Tail row j is at tailPositions[j] + j
+            int low = 0;
+            int high = tailCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (tailPositions[middle] + middle <= index) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            if (low > 0 && tailPositions[low - 1] + low - 1 == index)
+                return tail[low - 1];
+
+            return rows[index - low];
+        }
+
+        public int getMessageId(int i) {
+            return labels.getMessageId(row(i));
+        }
+
+        public String getUsername(int i) {
+            return labels.getUsername(row(i));
+        }
+
+        public String getPostDate(int i) {
+            return labels.getPostDate(row(i));
+        }
+
+        public long getPostTime(int i) {
+            return labels.getPostTime(row(i));
+        }
+
+        public String getSubject(int i) {
+            return labels.getSubject(row(i));
+        }
+
+        public boolean isLoaded(int i) {
+            return labels.isLoadedRow(row(i));
+        }
+
+        /*
+         * The labels from index from (inclusive) to to (exclusive).
+         */
+        public View subView(int from, int to) {
+            if (from < 0 || to > size || from > to)
+                throw new IndexOutOfBoundsException("Range " + from + " to " + to + " out of bounds for size " + size);
+
+            return new View(labels, rows, tail, tailPositions, tailCount, this.from + from, to - from);
+        }
+
+        /*
+         * The labels posted from fromMicros (inclusive) to toMicros
+         * (exclusive). Only for views sorted by post date.
+         */
+        public View range(long fromMicros, long toMicros) {
+            if (rows == null)
+                throw new IllegalStateException("Not sorted by post date");
+
+            synchronized (labels) {
+                return subView(lowerBound(fromMicros), lowerBound(toMicros));
+            }
+        }
+
+        /*
+         * Must hold the labels' lock. The first index posted at or after
+         * micros.
+         */
+        private int lowerBound(long micros) {
+            int low = 0;
+            int high = size;
+
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (labels.sortTime(row(middle)) < micros) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+    }
+
+    private final SymbolTable symbols; // Usernames
+    private final PostDate postDates;
+    private int size = 0;
+
+    // Columns
+    private int[] messageIds = new int[INITIAL_CAPACITY];
+    private long[] postTimes = new long[INITIAL_CAPACITY];
+    private byte[] postFormats = new byte[INITIAL_CAPACITY];
+    private int[] usernameIds = new int[INITIAL_CAPACITY];
+    private int[] subjectStarts = new int[INITIAL_CAPACITY];
+    private int[] subjectLengths = new int[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+
+    private char[] subjects = new char[INITIAL_CAPACITY * 16];
+    private int subjectsLength = 0;
+    private int abandonedChars = 0; // Chars in subjects that no row uses any more
+
+    private String[] unparsedPostDates = new String[0]; // Indexed by postTimes for rows whose date is UNPARSED
+    private int unparsedCount = 0;
+    private int abandonedPostDates = 0; // Entries in unparsedPostDates that no row uses any more
+
+    private int[] index = new int[INITIAL_CAPACITY * 2]; // Row + 1 for each message id, 0 if empty
+
+    // Rows sorted by post date, then id. The first sortedCount are never changed, only appended to
+    private int[] sorted = new int[0];
+    private int sortedCount = 0;
+    private int[] tail = new int[0]; // Sorted rows that go between those in sorted. Never changed once made
+    private int[] tailPositions = new int[0]; // For each tail row, the index in sorted it goes before
+    private int tailCount = 0;
+
+    MessageLabels(SymbolTable symbols, PostDate postDates) {
+        this.symbols = symbols;
+        this.postDates = postDates;
+    }
+
+    /*
+     * Adds the label, or updates it if one with the same id is already here.
+     * Returns its row.
+     */
+    public synchronized int add(int messageId, String username, String postDate, String subject) {
+        long stamp = postDates.parse(postDate);
+        byte format = PostDate.getFormat(stamp);
+        int usernameId = symbols.intern(username);
+
+        int row = rowOf(messageId);
+        boolean added = row < 0;
+        boolean wasUnparsed = !added && postFormats[row] == PostDate.UNPARSED;
+
+        long time;
+        if (format != PostDate.UNPARSED) {
+            time = PostDate.getMicros(stamp);
+            if (wasUnparsed) {
+                unparsedPostDates[(int) postTimes[row]] = null;
+                abandonedPostDates++;
+            }
+        } else if (wasUnparsed) {
+            time = postTimes[row]; // Reuses the row's place in the list
+            unparsedPostDates[(int) time] = postDate;
+        } else {
+            time = addUnparsedPostDate(postDate);
+        }
+
+        if (added) {
+            row = appendRow(messageId);
+        } else if (postTimes[row] != time || postFormats[row] != format) {
+            clearSorted(); // Moved in the order, sort everything again next time
+        }
+
+        postTimes[row] = time;
+        postFormats[row] = format;
+        usernameIds[row] = usernameId;
+        setSubject(row, subject, added);
+        return row;
+    }
+
+    /*
+     * Adds the label unless one with the same id is already here.
+     */
+    public synchronized void addIfAbsent(int messageId, String username, String postDate, String subject) {
+        if (rowOf(messageId) < 0)
+            add(messageId, username, postDate, subject);
+    }
+
+    private int addUnparsedPostDate(String postDate) {
+        if (unparsedCount == unparsedPostDates.length) {
+            if (abandonedPostDates > 0 && abandonedPostDates >= unparsedCount / 2)
+                compactUnparsedPostDates();
+
+            if (unparsedCount == unparsedPostDates.length)
+                unparsedPostDates = Arrays.copyOf(unparsedPostDates, Math.max(4, unparsedCount * 2));
+        }
+
+        unparsedPostDates[unparsedCount] = postDate;
+        return unparsedCount++;
+    }
+
+    private int appendRow(int messageId) {
+        if (size == messageIds.length) {
+            int capacity = size * 2;
+            messageIds = Arrays.copyOf(messageIds, capacity);
+            postTimes = Arrays.copyOf(postTimes, capacity);
+            postFormats = Arrays.copyOf(postFormats, capacity);
+            usernameIds = Arrays.copyOf(usernameIds, capacity);
+            subjectStarts = Arrays.copyOf(subjectStarts, capacity);
+            subjectLengths = Arrays.copyOf(subjectLengths, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+
+        int row = size++;
+        messageIds[row] = messageId;
+
+        if (size * 2 > index.length) {
+            index = new int[index.length * 2];
+            for (int r = 0; r < size; r++) {
+                insertIndex(r);
+            }
+        } else {
+            insertIndex(row);
+        }
+
+        return row;
+    }
+
+    private void setSubject(int row, String subject, boolean added) {
+        int length = subject.length();
+        int oldLength = subjectLengths[row]; // 0 for a new row
+
+        if (!added && length <= oldLength) {
+            abandonedChars += oldLength - length; // Fits over the old one
+        } else {
+            if (!added && subjectStarts[row] + oldLength == subjectsLength) {
+                subjectsLength = subjectStarts[row]; // The last subject grows in place
+            } else {
+                abandonedChars += oldLength;
+            }
+
+            subjectLengths[row] = 0; // So compacting does not keep the old subject
+            reserveSubject(row, length);
+        }
+
+        subject.getChars(0, length, subjects, subjectStarts[row]);
+        subjectLengths[row] = length;
+    }
+
+    /*
+     * Gives the row room for length chars at the end of the subjects.
+     */
+    private void reserveSubject(int row, int length) {
+        if (subjectsLength + length > subjects.length) {
+            if (abandonedChars >= subjectsLength / 2)
+                compactSubjects();
+
+            if (subjectsLength + length > subjects.length)
+                subjects = Arrays.copyOf(subjects, Math.max(subjects.length * 2, subjectsLength + length));
+        }
+
+        subjectStarts[row] = subjectsLength;
+        subjectsLength += length;
+    }
+
+    /*
+     * Moves every row's subject to the start of a new array, leaving out the
+     * chars no row uses.
+     */
+    private void compactSubjects() {
+        char[] compacted = new char[subjects.length];
+        int length = 0;
+
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(subjects, subjectStarts[r], compacted, length, subjectLengths[r]);
+            subjectStarts[r] = length;
+            length += subjectLengths[r];
+        }
+
+        subjects = compacted;
+        subjectsLength = length;
+        abandonedChars = 0;
+    }
+
+    /*
+     * Moves every row's unparsed post date to the start of the list, leaving
+     * out the ones no row uses. Only the order of parsed dates matters, so the
+     * sorted order does not change.
+     */
+    private void compactUnparsedPostDates() {
+        String[] compacted = new String[unparsedPostDates.length];
+        int count = 0;
+
+        for (int r = 0; r < size; r++) {
+            if (postFormats[r] != PostDate.UNPARSED)
+                continue;
+
+            compacted[count] = unparsedPostDates[(int) postTimes[r]];
+            postTimes[r] = count++;
+        }
+
+        unparsedPostDates = compacted;
+        unparsedCount = count;
+        abandonedPostDates = 0;
+    }
+
+    /*
+     * Index
+     */
+
+    private static int hash(int messageId) {
+        int h = messageId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void insertIndex(int row) {
+        int mask = index.length - 1;
+        int slot = hash(messageIds[row]) & mask;
+
+        while (index[slot] != 0)
+            slot = (slot + 1) & mask;
+
+        index[slot] = row + 1;
+    }
+
+    /*
+     * The row of the message, or -1.
+     */
+    public synchronized int rowOf(int messageId) {
+        int mask = index.length - 1;
+        int slot = hash(messageId) & mask;
+
+        while (index[slot] != 0) {
+            int row = index[slot] - 1;
+            if (messageIds[row] == messageId)
+                return row;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    public synchronized boolean contains(int messageId) {
+        return rowOf(messageId) >= 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*
+     * Content
+     */
+
+    public synchronized void setLoaded(int messageId) {
+        int row = rowOf(messageId);
+        if (row >= 0)
+            flags[row] |= LOADED;
+    }
+
+    /*
+     * Called when the content was dropped from the cache.
+     */
+    public synchronized void clearLoaded(int messageId) {
+        int row = rowOf(messageId);
+        if (row >= 0)
+            flags[row] &= ~LOADED;
+    }
+
+    public synchronized boolean isLoaded(int messageId) {
+        int row = rowOf(messageId);
+        return row >= 0 && isLoadedRow(row);
+    }
+
+    /*
+     * Rows
+     */
+
+    synchronized int getMessageId(int row) {
+        return messageIds[row];
+    }
+
+    synchronized String getUsername(int row) {
+        return symbols.get(usernameIds[row]);
+    }
+
+    /*
+     * The post date as the server sent it.
+     */
+    synchronized String getPostDate(int row) {
+        byte format = postFormats[row];
+        return (format != PostDate.UNPARSED) ? PostDate.format(postTimes[row], format)
+                : unparsedPostDates[(int) postTimes[row]];
+    }
+
+    /*
+     * Microseconds since the epoch, or Long.MIN_VALUE if the date could not be
+     * parsed.
+     */
+    synchronized long getPostTime(int row) {
+        return sortTime(row);
+    }
+
+    /*
+     * Parts of a row, for building a Message. Must hold the lock.
+     */
+    long getPostTimeColumn(int row) {
+        return postTimes[row];
+    }
+
+    byte getPostFormat(int row) {
+        return postFormats[row];
+    }
+
+    String getUnparsedPostDate(int row) {
+        return (postFormats[row] == PostDate.UNPARSED) ? unparsedPostDates[(int) postTimes[row]] : null;
+    }
+
+    synchronized String getSubject(int row) {
+        return new String(subjects, subjectStarts[row], subjectLengths[row]);
+    }
+
+    synchronized boolean isLoadedRow(int row) {
+        return (flags[row] & LOADED) != 0;
+    }
+
+    /*
+     * Views
+     */
+
+    /*
+     * The labels in the order they arrived.
+     */
+    public synchronized View view() {
+        return new View(this, null, null, null, 0, 0, size);
+    }
+
+    /*
+     * The labels sorted by post date, then by id. Labels whose date could not
+     * be parsed come first.
+     */
+    public synchronized View sortedView() {
+        int covered = sortedCount + tailCount;
+
+        if (covered < size) {
+            int[] added = new int[size - covered];
+            for (int i = 0; i < added.length; i++) {
+                added[i] = covered + i;
+            }
+            sortRows(added);
+
+            // New labels are usually the newest, so they go on the end without moving any others
+            if (tailCount == 0 && (sortedCount == 0 || !before(added[0], sorted[sortedCount - 1]))) {
+                appendSorted(added);
+            } else {
+                mergeTail(added);
+
+                if (tailCount >= Math.max(MIN_TAIL_MERGE, sortedCount / 8))
+                    mergeTailIntoSorted();
+            }
+        }
+
+        return new View(this, sorted, tail, tailPositions, tailCount, 0, sortedCount + tailCount);
+    }
+
+    /*
+     * Must hold the lock.
+     */
+    private void clearSorted() {
+        sorted = new int[0];
+        sortedCount = 0;
+        tail = new int[0];
+        tailPositions = new int[0];
+        tailCount = 0;
+    }
+
+    /*
+     * Must hold the lock. Views only read the part of sorted they were made
+     * with, so the rows are written past it in place.
+     */
+    private void appendSorted(int[] rows) {
+        if (sortedCount + rows.length > sorted.length)
+            sorted = Arrays.copyOf(sorted, Math.max(sorted.length * 2, sortedCount + rows.length));
+
+        System.arraycopy(rows, 0, sorted, sortedCount, rows.length);
+        sortedCount += rows.length;
+    }
+
+    /*
+     * Must hold the lock. Makes a new tail with the sorted rows merged in.
+     */
+    private void mergeTail(int[] rows) {
+        int[] merged = merge(tail, tailCount, rows);
+        int[] positions = new int[merged.length];
+
+        for (int j = 0; j < merged.length; j++) {
+            positions[j] = lowerBound(merged[j], (j > 0) ? positions[j - 1] : 0);
+        }
+
+        tail = merged;
+        tailPositions = positions;
+        tailCount = merged.length;
+    }
+
+    /*
+     * Must hold the lock. The first index in sorted, from low, whose row does
+     * not come before the given row.
+     */
+    private int lowerBound(int row, int low) {
+        int high = sortedCount;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (before(sorted[middle], row)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /*
+     * Must hold the lock.
+     */
+    private void mergeTailIntoSorted() {
+        int[] merged = new int[sortedCount + tailCount + Math.max(INITIAL_CAPACITY, sortedCount / 2)];
+        int i = 0, k = 0;
+
+        for (int j = 0; j < tailCount; j++) {
+            int count = tailPositions[j] - i;
+            System.arraycopy(sorted, i, merged, k, count);
+            i += count;
+            k += count;
+            merged[k++] = tail[j];
+        }
+        System.arraycopy(sorted, i, merged, k, sortedCount - i);
+
+        sorted = merged;
+        sortedCount += tailCount;
+        tail = new int[0];
+        tailPositions = new int[0];
+        tailCount = 0;
+    }
+
+    /*
+     * Must hold the lock.
+     */
+    private long sortTime(int row) {
+        return (postFormats[row] != PostDate.UNPARSED) ? postTimes[row] : Long.MIN_VALUE;
+    }
+
+    /*
+     * Must hold the lock.
+     */
+    private boolean before(int a, int b) {
+        long timeA = sortTime(a);
+        long timeB = sortTime(b);
+        return timeA < timeB || timeA == timeB && messageIds[a] < messageIds[b];
+    }
+
+    /*
+     * Must hold the lock. Merge sort, since the rows are compared by column.
+     */
+    private void sortRows(int[] rows) {
+        int[] buffer = new int[rows.length];
+
+        for (int width = 1; width < rows.length; width *= 2) {
+            for (int start = 0; start < rows.length; start += 2 * width) {
+                int middle = Math.min(start + width, rows.length);
+                int end = Math.min(start + 2 * width, rows.length);
+                int i = start, j = middle, k = start;
+
+                while (i < middle && j < end)
+                    buffer[k++] = before(rows[j], rows[i]) ? rows[j++] : rows[i++];
+                while (i < middle)
+                    buffer[k++] = rows[i++];
+                while (j < end)
+                    buffer[k++] = rows[j++];
+            }
+
+            System.arraycopy(buffer, 0, rows, 0, rows.length);
+        }
+    }
+
+    /*
+     * Must hold the lock. Returns a new array with both sorted lists.
+     */
+    private int[] merge(int[] a, int aLength, int[] b) {
+        int[] merged = new int[aLength + b.length];
+        int i = 0, j = 0, k = 0;
+
+        while (i < aLength && j < b.length)
+            merged[k++] = before(b[j], a[i]) ? b[j++] : a[i++];
+        while (i < aLength)
+            merged[k++] = a[i++];
+        while (j < b.length)
+            merged[k++] = b[j++];
+
+        return merged;
+    }
+}
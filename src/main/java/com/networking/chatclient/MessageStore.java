@@ -0,0 +1,554 @@
+package com.networking.chatclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/*
+ * Keeps the labels and content of messages on disk, so a client that starts
+ * again does not have to download them again. One store is used per server.
+ *
+ * Records are appended to segment files (segment-000001.log, ...), which are
+ * never rewritten. A record is:
+ *
+ * int length (of the rest of the record), byte type, int groupId,
+ * int messageId, then for every string: int size, UTF-8 bytes
+ *
+ * A label record has the username, post date and subject; a content record
+ * has the content. A newer record for the same message replaces the older one.
+ *
+ * messages.idx is a memory-mapped hash table (open addressing, linear probing)
+ * from group id and message id to where the newest label and content records
+ * are, so a lookup is one probe sequence and one read. The index header says
+ * how far into the log it is up to date; records after that (from a crash
+ * between appending and indexing) are indexed again when the store is opened,
+ * and a record cut short by a crash is truncated.
+ *
+ * Only one client can have a store open at a time: open takes an exclusive
+ * lock on store.lock, and fails if another client (in this process or
+ * another) holds it.
+ */
+public class MessageStore implements Closeable {
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    static final int INITIAL_INDEX_CAPACITY = 4096;
+
+    static final byte LABEL_RECORD = 1;
+    static final byte CONTENT_RECORD = 2;
+    static final int RECORD_HEADER_SIZE = 4 + 1 + 4 + 4;
+
+    // Index header
+    static final int INDEX_MAGIC = 0x4d534958;
+    static final int HEADER_SIZE = 32;
+    static final int MAGIC_POSITION = 0;
+    static final int CAPACITY_POSITION = 4;
+    static final int SIZE_POSITION = 8;
+    static final int INDEXED_SEGMENT_POSITION = 12;
+    static final int INDEXED_OFFSET_POSITION = 16;
+
+    // Index slots. Segments are numbered from 1, so 0 means "no record"
+    static final int SLOT_SIZE = 32;
+    static final int GROUP_ID = 0;
+    static final int MESSAGE_ID = 4;
+    static final int LABEL_SEGMENT = 8;
+    static final int CONTENT_SEGMENT = 12;
+    static final int LABEL_OFFSET = 16;
+    static final int CONTENT_OFFSET = 24;
+
+    /*
+     * A label read from the store.
+     */
+    public static final class StoredLabel {
+        public final String username;
+        public final String postDate;
+        public final String subject;
+
+        StoredLabel(String username, String postDate, String subject) {
+            this.username = username;
+            this.postDate = postDate;
+            this.subject = subject;
+        }
+    }
+
+    private final Path directory;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private final ArrayList<FileChannel> segments = new ArrayList<FileChannel>(); // Segment n is at n - 1
+    private long segmentEnd; // End of the last segment
+
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int size;
+    private boolean closed = false;
+
+    private MessageStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /*
+     * Opens the store in the directory, creating it if needed.
+     */
+    public static MessageStore open(Path directory) throws IOException {
+        MessageStore store = new MessageStore(directory);
+
+        try {
+            store.lock();
+            store.openSegments();
+            store.openIndex();
+            store.recover();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+
+        return store;
+    }
+
+    private void lock() throws IOException {
+        Files.createDirectories(directory);
+
+        lockChannel = FileChannel.open(directory.resolve("store.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // Held by another store in this process
+        }
+
+        if (lock == null)
+            throw new IOException("Message store " + directory + " is in use by another client");
+    }
+
+    private void openSegments() throws IOException {
+        ArrayList<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path path : stream)
+                paths.add(path);
+        }
+        Collections.sort(paths);
+
+        for (Path path : paths) {
+            segments.add(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+
+        if (segments.isEmpty())
+            addSegment();
+
+        segmentEnd = segments.get(segments.size() - 1).size();
+    }
+
+    private void addSegment() throws IOException {
+        Path path = directory.resolve(String.format("segment-%06d.log", segments.size() + 1));
+        segments.add(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+        segmentEnd = 0;
+    }
+
+    private void openIndex() throws IOException {
+        Path path = directory.resolve("messages.idx");
+        indexChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        if (indexChannel.size() >= HEADER_SIZE) {
+            MappedByteBuffer header = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            int storedCapacity = header.getInt(CAPACITY_POSITION);
+
+            if (header.getInt(MAGIC_POSITION) == INDEX_MAGIC && storedCapacity > 0
+                    && Integer.bitCount(storedCapacity) == 1
+                    && indexChannel.size() == HEADER_SIZE + (long) storedCapacity * SLOT_SIZE) {
+                capacity = storedCapacity;
+                index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+                size = index.getInt(SIZE_POSITION);
+                return;
+            }
+        }
+
+        resetIndex(); // Missing or unusable
+    }
+
+    /*
+     * Empties the index, so the whole log is indexed again.
+     */
+    private void resetIndex() throws IOException {
+        indexChannel.truncate(0);
+        capacity = INITIAL_INDEX_CAPACITY;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        index.putInt(MAGIC_POSITION, INDEX_MAGIC);
+        index.putInt(CAPACITY_POSITION, capacity);
+        index.putInt(SIZE_POSITION, 0);
+        index.putInt(INDEXED_SEGMENT_POSITION, 1);
+        index.putLong(INDEXED_OFFSET_POSITION, 0);
+        size = 0;
+    }
+
+    /*
+     * Indexes the records appended after the index was last updated. If the
+     * index says it is up to date past the end of the log (the log was
+     * truncated or replaced), nothing in it can be trusted, and it is made
+     * again from the whole log.
+     */
+    private void recover() throws IOException {
+        int segment = Math.max(1, index.getInt(INDEXED_SEGMENT_POSITION));
+        long offset = index.getLong(INDEXED_OFFSET_POSITION);
+
+        if (segment > segments.size() || offset < 0 || offset > segments.get(segment - 1).size()) {
+            resetIndex();
+            segment = 1;
+            offset = 0;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        for (; segment <= segments.size(); segment++, offset = 0) {
+            FileChannel channel = segments.get(segment - 1);
+            long end = channel.size();
+
+            while (offset < end) {
+                header.clear();
+                if (!readFully(channel, header, offset) || header.getInt(0) < RECORD_HEADER_SIZE - 4
+                        || offset + 4 + header.getInt(0) > end) {
+                    channel.truncate(offset); // Cut short by a crash
+                    break;
+                }
+
+                byte type = header.get(4);
+                int groupId = header.getInt(5);
+                int messageId = header.getInt(9);
+                indexRecord(type, groupId, messageId, segment, offset);
+
+                offset += 4 + header.getInt(0);
+            }
+        }
+
+        segmentEnd = segments.get(segments.size() - 1).size();
+        setIndexedUpTo(segments.size(), segmentEnd);
+    }
+
+    /*
+     * Writing
+     */
+
+    /*
+     * Saves a message's label, replacing the saved one like putContent does.
+     * Does nothing if the same label is already saved, so labels that are
+     * sent again do not grow the log.
+     */
+    public synchronized void putLabel(int groupId, int messageId, String username, String postDate, String subject)
+            throws IOException {
+        ensureOpen();
+
+        String[] saved = readRecord(groupId, messageId, LABEL_SEGMENT, LABEL_OFFSET, 3);
+        if (saved != null && saved[0].equals(username) && saved[1].equals(postDate) && saved[2].equals(subject))
+            return;
+
+        append(LABEL_RECORD, groupId, messageId, username, postDate, subject);
+    }
+
+    public synchronized void putContent(int groupId, int messageId, String content) throws IOException {
+        ensureOpen();
+        append(CONTENT_RECORD, groupId, messageId, content);
+    }
+
+    private void append(byte type, int groupId, int messageId, String... strings) throws IOException {
+        byte[][] encoded = new byte[strings.length][];
+        int length = RECORD_HEADER_SIZE;
+
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length - 4).put(type).putInt(groupId).putInt(messageId);
+        for (byte[] bytes : encoded) {
+            record.putInt(bytes.length).put(bytes);
+        }
+        record.flip();
+
+        if (segmentEnd > 0 && segmentEnd + length > SEGMENT_SIZE)
+            addSegment();
+
+        int segment = segments.size();
+        long offset = segmentEnd;
+        FileChannel channel = segments.get(segment - 1);
+
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        segmentEnd += length;
+
+        indexRecord(type, groupId, messageId, segment, offset);
+        setIndexedUpTo(segment, segmentEnd);
+    }
+
+    private void setIndexedUpTo(int segment, long offset) {
+        index.putInt(INDEXED_SEGMENT_POSITION, segment);
+        index.putLong(INDEXED_OFFSET_POSITION, offset);
+    }
+
+    /*
+     * Index
+     */
+
+    private static int hash(int groupId, int messageId) {
+        int h = (groupId * 31 + messageId) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static boolean isEmpty(ByteBuffer index, int position) {
+        return index.getInt(position + LABEL_SEGMENT) == 0 && index.getInt(position + CONTENT_SEGMENT) == 0;
+    }
+
+    /*
+     * Returns the message's slot, or -1.
+     */
+    private int findSlot(int groupId, int messageId) {
+        int mask = capacity - 1;
+        int slot = hash(groupId, messageId) & mask;
+
+        for (int probes = 0; probes < capacity; probes++) {
+            int position = slotPosition(slot);
+            if (isEmpty(index, position))
+                return -1;
+
+            if (index.getInt(position + GROUP_ID) == groupId && index.getInt(position + MESSAGE_ID) == messageId)
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    private void indexRecord(byte type, int groupId, int messageId, int segment, long offset) throws IOException {
+        if (type != LABEL_RECORD && type != CONTENT_RECORD)
+            return; // From a newer version, skip it
+
+        int slot = findSlot(groupId, messageId);
+
+        if (slot < 0) {
+            if (size + 1 > capacity / 2)
+                growIndex();
+
+            slot = insertSlot(index, capacity, groupId, messageId);
+            size++;
+            index.putInt(SIZE_POSITION, size);
+        }
+
+        int position = slotPosition(slot);
+        if (type == LABEL_RECORD) {
+            index.putLong(position + LABEL_OFFSET, offset);
+            index.putInt(position + LABEL_SEGMENT, segment);
+        } else {
+            index.putLong(position + CONTENT_OFFSET, offset);
+            index.putInt(position + CONTENT_SEGMENT, segment);
+        }
+    }
+
+    /*
+     * Returns the first empty slot for the message.
+     */
+    private static int insertSlot(ByteBuffer index, int capacity, int groupId, int messageId) {
+        int mask = capacity - 1;
+        int slot = hash(groupId, messageId) & mask;
+
+        while (!isEmpty(index, slotPosition(slot)))
+            slot = (slot + 1) & mask;
+
+        int position = slotPosition(slot);
+        index.putInt(position + GROUP_ID, groupId);
+        index.putInt(position + MESSAGE_ID, messageId);
+        return slot;
+    }
+
+    /*
+     * Doubles the index in place: the slots are copied to the heap, the file is
+     * extended and mapped again, and every message is hashed into it again.
+     * The file is never replaced while it is mapped, which Windows does not
+     * allow. The magic is cleared while the slots are moved, so an index left
+     * half moved by a crash is made again from the log.
+     */
+    private void growIndex() throws IOException {
+        int newCapacity = capacity * 2;
+        int oldLength = HEADER_SIZE + capacity * SLOT_SIZE;
+
+        byte[] copy = new byte[oldLength];
+        index.get(0, copy);
+        ByteBuffer old = ByteBuffer.wrap(copy);
+
+        index.putInt(MAGIC_POSITION, 0);
+        index.force();
+
+        MappedByteBuffer newIndex = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        newIndex.put(HEADER_SIZE, new byte[capacity * SLOT_SIZE]); // The slots past them are new, so already empty
+        index = newIndex; // The old mapping is dropped
+
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = slotPosition(slot);
+            if (isEmpty(old, position))
+                continue;
+
+            int newSlot = insertSlot(newIndex, newCapacity, old.getInt(position + GROUP_ID),
+                    old.getInt(position + MESSAGE_ID));
+            int newPosition = slotPosition(newSlot);
+            newIndex.put(newPosition + LABEL_SEGMENT, copy, position + LABEL_SEGMENT, SLOT_SIZE - LABEL_SEGMENT);
+        }
+
+        newIndex.putInt(CAPACITY_POSITION, newCapacity);
+        newIndex.putInt(SIZE_POSITION, size);
+        newIndex.putInt(MAGIC_POSITION, INDEX_MAGIC); // Last, so a half moved index is never trusted
+        newIndex.force();
+
+        capacity = newCapacity;
+    }
+
+    /*
+     * Reading
+     */
+
+    /*
+     * Returns the saved label, or null.
+     */
+    public synchronized StoredLabel getLabel(int groupId, int messageId) throws IOException {
+        String[] strings = readRecord(groupId, messageId, LABEL_SEGMENT, LABEL_OFFSET, 3);
+        return (strings != null) ? new StoredLabel(strings[0], strings[1], strings[2]) : null;
+    }
+
+    public synchronized boolean hasLabel(int groupId, int messageId) {
+        if (closed)
+            return false;
+
+        int slot = findSlot(groupId, messageId);
+        return slot >= 0 && index.getInt(slotPosition(slot) + LABEL_SEGMENT) != 0;
+    }
+
+    /*
+     * Returns the saved content, or null.
+     */
+    public synchronized String getContent(int groupId, int messageId) throws IOException {
+        String[] strings = readRecord(groupId, messageId, CONTENT_SEGMENT, CONTENT_OFFSET, 1);
+        return (strings != null) ? strings[0] : null;
+    }
+
+    private String[] readRecord(int groupId, int messageId, int segmentField, int offsetField, int stringCount)
+            throws IOException {
+        ensureOpen();
+
+        int slot = findSlot(groupId, messageId);
+        if (slot < 0)
+            return null;
+
+        int position = slotPosition(slot);
+        int segment = index.getInt(position + segmentField);
+        if (segment == 0)
+            return null;
+
+        if (segment > segments.size())
+            return null;
+
+        FileChannel channel = segments.get(segment - 1);
+        long offset = index.getLong(position + offsetField);
+
+        ByteBuffer length = ByteBuffer.allocate(4);
+        if (offset < 0 || !readFully(channel, length, offset))
+            return null;
+
+        // A record that does not fit in the segment, or is not the one asked for, is not stored
+        int recordLength = length.getInt(0);
+        if (recordLength < RECORD_HEADER_SIZE - 4 || offset + 4 + recordLength > channel.size())
+            return null;
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        if (!readFully(channel, record, offset + 4))
+            return null;
+
+        byte type = (segmentField == LABEL_SEGMENT) ? LABEL_RECORD : CONTENT_RECORD;
+        if (record.get(0) != type || record.getInt(1) != groupId || record.getInt(5) != messageId)
+            return null;
+
+        record.position(RECORD_HEADER_SIZE - 4);
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            if (record.remaining() < 4)
+                return null;
+
+            int size = record.getInt();
+            if (size < 0 || size > record.remaining())
+                return null;
+
+            strings[i] = new String(record.array(), record.position(), size, StandardCharsets.UTF_8);
+            record.position(record.position() + size);
+        }
+
+        return strings;
+    }
+
+    /*
+     * Fills the buffer from the channel. Returns false if the channel ends
+     * first.
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * How many messages have something saved.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Message store is closed");
+    }
+
+    /*
+     * Writes everything to disk and closes the files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+
+        try {
+            if (index != null)
+                index.force();
+
+            for (FileChannel channel : segments) {
+                channel.force(false);
+                channel.close();
+            }
+
+            if (indexChannel != null)
+                indexChannel.close();
+        } finally {
+            // Last, so no other client opens the files while they are being written
+            if (lockChannel != null)
+                lockChannel.close(); // Releases the lock
+        }
+    }
+}
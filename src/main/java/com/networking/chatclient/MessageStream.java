@@ -0,0 +1,130 @@
+package com.networking.chatclient;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.networking.chatclient.ChatClient.Message;
+
+/*
+ * Retrieves many messages of a group, keeping up to window RETRIEVE requests
+ * in flight instead of waiting for each response before sending the next one.
+ *
+ * Nothing is sent until someone subscribes, and each subscriber gets its own
+ * retrieval. Messages are passed on in the order their content arrives, which
+ * is not necessarily the order of the ids. Ids the server does not know are
+ * skipped. If a request fails (times out, or the connection closes), the
+ * subscriber gets onError and the rest of the retrieval is abandoned.
+ *
+ * Responses that the subscriber has not asked for yet are kept, but never more
+ * than window of them (counting the requests in flight).
+ */
+public class MessageStream implements Flow.Publisher<Message> {
+    private final ChatClient client;
+    private final int groupId;
+    private final int[] messageIds;
+    private final int window;
+
+    public MessageStream(ChatClient client, int groupId, int[] messageIds, int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("window must be at least 1");
+
+        this.client = client;
+        this.groupId = groupId;
+        this.messageIds = messageIds.clone();
+        this.window = window;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        Retrieval retrieval = new Retrieval(subscriber);
+        subscriber.onSubscribe(retrieval);
+        retrieval.drain();
+    }
+
+    /*
+     * One subscriber's retrieval.
+     *
+     * Everything that sends requests or calls the subscriber happens in drain,
+     * which only ever runs on one thread at a time: whoever finds work to do
+     * while drain is already running just makes it loop once more.
+     */
+    private class Retrieval implements Flow.Subscription {
+        final Flow.Subscriber<? super Message> subscriber;
+        final ConcurrentLinkedQueue<Message> ready = new ConcurrentLinkedQueue<Message>(); // Arrived, not delivered
+        final AtomicLong demand = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger drainRequests = new AtomicInteger();
+        volatile Throwable error = null;
+        volatile boolean cancelled = false;
+        boolean done = false; // Only used in drain
+        int next = 0; // Index of the next id to request. Only used in drain
+
+        Retrieval(Flow.Subscriber<? super Message> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Must request a positive number of messages");
+            } else {
+                long current;
+                while (!demand.compareAndSet(current = demand.get(),
+                        (current + n < 0) ? Long.MAX_VALUE : current + n)) {
+                }
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        void drain() {
+            if (drainRequests.getAndIncrement() != 0)
+                return;
+
+            do {
+                if (done || cancelled)
+                    continue;
+
+                if (error != null) {
+                    done = true;
+                    subscriber.onError(error);
+                    continue;
+                }
+
+                Message message;
+                while (demand.get() > 0 && !cancelled && (message = ready.poll()) != null) {
+                    demand.decrementAndGet();
+                    subscriber.onNext(message);
+                }
+
+                while (next < messageIds.length && !cancelled && inFlight.get() + ready.size() < window) {
+                    inFlight.incrementAndGet();
+                    client.retrieveMessageAsync(groupId, messageIds[next++]).whenComplete(this::received);
+                }
+
+                if (next == messageIds.length && inFlight.get() == 0 && ready.isEmpty() && error == null) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            } while (drainRequests.decrementAndGet() != 0);
+        }
+
+        private void received(Message message, Throwable e) {
+            if (e != null) {
+                error = e;
+            } else if (message != null) {
+                ready.add(message);
+            }
+
+            inFlight.decrementAndGet();
+            drain();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.networking.chatclient;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs the handling of received packets off the thread that reads them.
+ *
+ * Used to be a new Thread per packet. Now packets are handed to an executor:
+ * virtual threads when the JVM has them (JDK 21+), otherwise a bounded pool.
+ * When the bounded pool's queue is full the reading thread handles the packet
+ * itself, which slows down reading instead of piling up more work.
+ *
+ * One dispatcher can be shared by many clients.
+ *
+ * The statistics are per packet. A client's DispatchLanes hands the executor
+ * one task per lane run, which can handle many packets, so it counts its
+ * packets itself with packetQueued and packetStarted.
+ */
+public class PacketDispatcher {
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static PacketDispatcher defaultDispatcher;
+
+    private final ExecutorService executor;
+
+    // Statistics
+    private final AtomicInteger queueDepth = new AtomicInteger(); // Packets dispatched but not started yet
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public PacketDispatcher(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /*
+     * A dispatcher that uses virtual threads if the JVM supports them, or a
+     * bounded pool otherwise.
+     */
+    public static PacketDispatcher create() {
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null)
+            return new PacketDispatcher(virtualThreads);
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return createBounded(threads, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /*
+     * A dispatcher backed by a fixed pool of threads and a bounded queue.
+     */
+    public static PacketDispatcher createBounded(int threads, int queueCapacity) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), daemonThreadFactory("PacketDispatcher"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+
+        return new PacketDispatcher(pool);
+    }
+
+    /*
+     * The dispatcher clients use unless they are given another one.
+     */
+    public static synchronized PacketDispatcher getDefault() {
+        if (defaultDispatcher == null)
+            defaultDispatcher = create();
+
+        return defaultDispatcher;
+    }
+
+    /*
+     * Uses reflection since this is compiled for JDK 17.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+
+        return (runnable) -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /*
+     * Runs the task, which handles one packet, on the executor.
+     */
+    public void dispatch(Runnable task) {
+        final long dispatchTime = System.nanoTime();
+        packetQueued();
+
+        executor.execute(() -> {
+            packetStarted(System.nanoTime() - dispatchTime);
+            task.run();
+        });
+    }
+
+    /*
+     * Runs a task that counts the packets it handles itself.
+     */
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    void packetQueued() {
+        queueDepth.incrementAndGet();
+    }
+
+    /*
+     * latency is how long the packet waited since packetQueued.
+     */
+    void packetStarted(long latency) {
+        queueDepth.decrementAndGet();
+        dispatched.incrementAndGet();
+        totalLatencyNanos.addAndGet(latency);
+
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+        }
+    }
+
+    /*
+     * Statistics
+     */
+
+    /*
+     * How many packets are waiting to be handled, in the executor's queue or
+     * in a client's lanes.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /*
+     * How many packets have started being handled.
+     */
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /*
+     * Average time between a packet being dispatched (or queued in a lane) and
+     * its handling starting.
+     */
+    public long getAverageDispatchLatencyNanos() {
+        long count = dispatched.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / count;
+    }
+
+    public long getMaxDispatchLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
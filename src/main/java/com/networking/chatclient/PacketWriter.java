@@ -0,0 +1,507 @@
+package com.networking.chatclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Sends packets to the server.
+ *
+ * Packets from every thread go into one queue. Whichever thread gets the write
+ * lock encodes everything that is queued into pooled buffers and sends it all
+ * with a single gathered write, so packets queued by other threads in the
+ * meantime are sent along with its own.
+ *
+ * With the IMMEDIATE flush policy the sending thread does this itself. With
+ * the LINGER policy a background thread waits lingerMillis after the first
+ * queued packet before writing, trading a little latency for larger batches.
+ *
+ * If the channel is non-blocking (see EventLoopGroup), bytes that the channel
+ * does not take right away are kept in order and written by the event loop
+ * once the channel is writable again.
+ */
+public class PacketWriter {
+    public enum FlushPolicy {
+        IMMEDIATE,
+        LINGER
+    }
+
+    static final int BUFFER_SIZE = 8 * 1024;
+    static final int MAX_POOLED_BUFFERS = 16;
+    static final int MAX_BATCH_BUFFERS = 16;
+    static final long DEFAULT_LINGER_MILLIS = 2;
+
+    private final GatheringByteChannel channel;
+    private final ConcurrentLinkedQueue<ProtocolPacket> queue = new ConcurrentLinkedQueue<ProtocolPacket>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Only used while holding writeLock
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer[] batch = new ByteBuffer[4];
+    private int batchSize = 0;
+    private long bytesBeforeCurrentBuffer = 0; // Bytes in the batch's buffers before the current one
+
+    private volatile ClientProtocol.FramingMode framingMode = ClientProtocol.FramingMode.TEXT;
+    private volatile PayloadCompressor compressor; // Only used with binary framing
+
+    private final FlushPolicy flushPolicy;
+    private final long lingerMillis;
+    private Thread lingerThread;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // Only set for non-blocking channels
+    private volatile Runnable writeInterest; // Asks the event loop to call writePending when writable
+    private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<ByteBuffer>(); // Guarded by writeLock
+    private final AtomicBoolean writeRetry = new AtomicBoolean(false); // writePending found the lock held
+    private volatile boolean closed = false;
+
+    // Statistics
+    private final AtomicLong packetsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+
+    public PacketWriter(GatheringByteChannel channel) {
+        this(channel, FlushPolicy.IMMEDIATE, DEFAULT_LINGER_MILLIS);
+    }
+
+    public PacketWriter(GatheringByteChannel channel, FlushPolicy flushPolicy, long lingerMillis) {
+        this.channel = channel;
+        this.flushPolicy = flushPolicy;
+        this.lingerMillis = lingerMillis;
+
+        if (flushPolicy == FlushPolicy.LINGER) {
+            lingerThread = new Thread(this::lingerLoop, "PacketWriter Linger");
+            lingerThread.setDaemon(true);
+            lingerThread.start();
+        }
+    }
+
+    /*
+     * Queues a packet to be sent. Depending on the flush policy it is either
+     * written before this returns (possibly by another thread that is already
+     * writing) or shortly after.
+     */
+    public void send(ProtocolPacket packet) {
+        if (closed)
+            return;
+
+        queue.add(packet);
+
+        if (flushPolicy == FlushPolicy.LINGER) {
+            if (flushScheduled.compareAndSet(false, true))
+                LockSupport.unpark(lingerThread);
+        } else {
+            flush();
+        }
+    }
+
+    /*
+     * Writes every queued packet.
+     *
+     * If another thread is already writing, this returns right away and that
+     * thread writes the queued packets once it finishes its current batch.
+     */
+    public void flush() {
+        while (!queue.isEmpty() && writeLock.tryLock()) {
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                unlockWrite();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        queue.clear();
+
+        if (lingerThread != null)
+            LockSupport.unpark(lingerThread);
+    }
+
+    /*
+     * Sets how packets are framed. Applies to packets that have not been
+     * encoded yet.
+     */
+    public void setFramingMode(ClientProtocol.FramingMode framingMode) {
+        this.framingMode = framingMode;
+    }
+
+    /*
+     * Sets the compressor used for large parameters of binary frames, or null
+     * to stop compressing.
+     */
+    public void setCompressor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public ClientProtocol.FramingMode getFramingMode() {
+        return framingMode;
+    }
+
+    /*
+     * Switches the writer to non-blocking mode. writeInterest is run whenever
+     * bytes are left over, and should lead to writePending being called once
+     * the channel is writable.
+     */
+    void setWriteInterest(Runnable writeInterest) {
+        this.writeInterest = writeInterest;
+    }
+
+    /*
+     * Writes bytes left over from earlier batches. Called by the event loop when
+     * the channel is writable.
+     */
+    void writePending() throws IOException {
+        writeRetry.set(true);
+
+        // If the lock is held, its holder sees writeRetry once it unlocks
+        if (!writeLock.tryLock())
+            return;
+
+        try {
+            writeRetry.set(false);
+            if (!writePendingOutput())
+                writeInterest.run();
+        } finally {
+            unlockWrite();
+        }
+
+        flush(); // Anything queued while the bytes were stuck
+    }
+
+    /*
+     * Unlocks writeLock. If writePending was called while it was held, asks
+     * the event loop to call it again, since the channel's OP_WRITE was
+     * already used up by the call that gave up.
+     */
+    private void unlockWrite() {
+        writeLock.unlock();
+
+        Runnable writeInterest = this.writeInterest;
+        if (writeInterest != null && writeRetry.get())
+            writeInterest.run();
+    }
+
+    /*
+     * Writes as much of pendingOutput as the channel takes. Returns whether all
+     * of it was written. Must hold writeLock.
+     */
+    private boolean writePendingOutput() throws IOException {
+        while (!pendingOutput.isEmpty()) {
+            ByteBuffer buffer = pendingOutput.peek();
+            long written = channel.write(buffer);
+            writeCalls.incrementAndGet();
+            bytesWritten.addAndGet(written);
+
+            if (buffer.hasRemaining())
+                return false;
+
+            pendingOutput.poll();
+        }
+
+        return true;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public long getPacketsWritten() {
+        return packetsWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /*
+     * The number of write calls made on the channel. Compare to
+     * getPacketsWritten to see how well packets are being coalesced.
+     */
+    public long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    /*
+     * Encodes everything in the queue and writes it. Must hold writeLock.
+     */
+    private void writeQueued() throws IOException {
+        ProtocolPacket packet;
+        int packets = 0;
+
+        try {
+            while ((packet = queue.poll()) != null) {
+                if (framingMode == ClientProtocol.FramingMode.BINARY) {
+                    encodeBinary(packet);
+                } else {
+                    encodeText(packet);
+                }
+                packets++;
+
+                // Don't let one batch grow without limit while others keep queueing
+                if (batchSize >= MAX_BATCH_BUFFERS) {
+                    writeBatch();
+                    releaseBatch();
+                    packetsWritten.addAndGet(packets);
+                    packets = 0;
+                }
+            }
+
+            writeBatch();
+            packetsWritten.addAndGet(packets);
+        } finally {
+            releaseBatch();
+        }
+    }
+
+    private void encodeText(ProtocolPacket packet) {
+        encode(packet.getCommand());
+        encode(ProtocolPacket.CRLF);
+
+        for (String parameter : packet.getParameters()) {
+            encode(parameter);
+            encode(ProtocolPacket.CRLF);
+        }
+
+        encode(ProtocolPacket.END);
+    }
+
+    /*
+     * Encodes a packet as a binary frame. Lengths are written as placeholders
+     * and filled in once the bytes after them have been encoded.
+     */
+    private void encodeBinary(ProtocolPacket packet) {
+        ArrayList<String> parameters = packet.getParameters();
+        PayloadCompressor compressor = this.compressor;
+
+        ByteBuffer header = reserve(FrameDecoder.LENGTH_SIZE + 2);
+        int lengthIndex = header.position();
+        header.putInt(0);
+        long frameStart = batchPosition();
+
+        header.put(ClientProtocol.getCommandCode(packet.getCommand()));
+        header.put((byte) parameters.size());
+
+        for (int i = 0; i < parameters.size(); i++) {
+            if (packet.isIntParameter(i)) {
+                reserve(5).put(ClientProtocol.INT_PARAMETER).putInt(Integer.parseInt(parameters.get(i)));
+                continue;
+            }
+
+            if (compressor != null && parameters.get(i).length() >= compressor.getThreshold()) {
+                encodeCompressed(parameters.get(i), compressor);
+                continue;
+            }
+
+            ByteBuffer parameterHeader = reserve(5);
+            parameterHeader.put(ClientProtocol.STRING_PARAMETER);
+            int sizeIndex = parameterHeader.position();
+            parameterHeader.putInt(0);
+
+            long parameterStart = batchPosition();
+            encode(parameters.get(i));
+            parameterHeader.putInt(sizeIndex, (int) (batchPosition() - parameterStart));
+        }
+
+        header.putInt(lengthIndex, (int) (batchPosition() - frameStart));
+    }
+
+    /*
+     * Encodes a string parameter as a compressed parameter, or as a plain one if
+     * compressing does not make it smaller.
+     */
+    private void encodeCompressed(String parameter, PayloadCompressor compressor) {
+        byte[] bytes = parameter.getBytes(StandardCharsets.UTF_8);
+        int compressedLength = compressor.compress(bytes);
+
+        if (compressedLength < 0) {
+            reserve(5).put(ClientProtocol.STRING_PARAMETER).putInt(bytes.length);
+            put(bytes, bytes.length);
+        } else {
+            reserve(9).put(ClientProtocol.COMPRESSED_PARAMETER).putInt(compressedLength).putInt(bytes.length);
+            put(compressor.getDeflateBuffer(), compressedLength);
+        }
+    }
+
+    /*
+     * Copies bytes into the batch, spreading them over as many buffers as needed.
+     */
+    private void put(byte[] bytes, int length) {
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer buffer = reserve(1);
+            int n = Math.min(buffer.remaining(), length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    /*
+     * Returns a buffer with at least the given number of bytes remaining.
+     */
+    private ByteBuffer reserve(int bytes) {
+        if (currentBuffer().remaining() < bytes)
+            addBufferToBatch();
+
+        return currentBuffer();
+    }
+
+    /*
+     * How many bytes have been encoded into the batch.
+     */
+    private long batchPosition() {
+        return bytesBeforeCurrentBuffer + currentBuffer().position();
+    }
+
+    private void encode(String s) {
+        CharBuffer chars = CharBuffer.wrap(s);
+        encoder.reset();
+
+        while (encoder.encode(chars, currentBuffer(), true).isOverflow()) {
+            addBufferToBatch();
+        }
+
+        while (encoder.flush(currentBuffer()) == CoderResult.OVERFLOW) {
+            addBufferToBatch();
+        }
+    }
+
+    /*
+     * Returns the buffer that is currently being filled.
+     */
+    private ByteBuffer currentBuffer() {
+        if (batchSize == 0)
+            addBufferToBatch();
+
+        return batch[batchSize - 1];
+    }
+
+    private void addBufferToBatch() {
+        if (batchSize == batch.length)
+            batch = Arrays.copyOf(batch, batch.length * 2);
+
+        if (batchSize > 0)
+            bytesBeforeCurrentBuffer += batch[batchSize - 1].position();
+
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        batch[batchSize++] = buffer;
+    }
+
+    /*
+     * Writes every buffer in the batch with gathered writes.
+     */
+    private void writeBatch() throws IOException {
+        if (batchSize == 0)
+            return;
+
+        long remaining = 0;
+        for (int i = 0; i < batchSize; i++) {
+            batch[i].flip();
+            remaining += batch[i].remaining();
+        }
+
+        Runnable writeInterest = this.writeInterest;
+
+        // Earlier bytes are still waiting, so these have to wait behind them
+        if (writeInterest != null && !writePendingOutput()) {
+            keepPending();
+            return;
+        }
+
+        while (remaining > 0) {
+            long written = channel.write(batch, 0, batchSize);
+            writeCalls.incrementAndGet();
+            bytesWritten.addAndGet(written);
+            remaining -= written;
+
+            if (written == 0 && writeInterest != null && remaining > 0) {
+                keepPending();
+                writeInterest.run();
+                return;
+            }
+        }
+    }
+
+    /*
+     * Copies what is left of the batch to pendingOutput, so the batch's buffers
+     * can go back to the pool.
+     */
+    private void keepPending() {
+        for (int i = 0; i < batchSize; i++) {
+            if (!batch[i].hasRemaining())
+                continue;
+
+            ByteBuffer copy = ByteBuffer.allocate(batch[i].remaining());
+            copy.put(batch[i]).flip();
+            pendingOutput.add(copy);
+        }
+    }
+
+    /*
+     * Returns the batch's buffers to the pool.
+     */
+    private void releaseBatch() {
+        for (int i = 0; i < batchSize; i++) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                batch[i].clear();
+                bufferPool.push(batch[i]);
+            }
+            batch[i] = null;
+        }
+
+        batchSize = 0;
+        bytesBeforeCurrentBuffer = 0;
+    }
+
+    /*
+     * The body of the linger thread. Sleeps until a packet is queued, waits
+     * lingerMillis so that more packets can join the batch, then writes.
+     */
+    private void lingerLoop() {
+        while (!closed) {
+            if (!flushScheduled.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(lingerMillis));
+
+            // Clear the flag before writing so that packets queued after the
+            // queue is drained schedule another flush
+            flushScheduled.set(false);
+
+            // The lock may be held by a thread calling flush() directly, so wait for it
+            writeLock.lock();
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                unlockWrite();
+            }
+        }
+    }
+}
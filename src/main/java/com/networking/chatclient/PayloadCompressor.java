@@ -0,0 +1,307 @@
+package com.networking.chatclient;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compresses large parameters of binary frames.
+ *
+ * One of these is made per connection so that the Deflater and Inflater (and
+ * their native memory) are reused for every packet. Compression is only done
+ * by the PacketWriter while it holds its write lock, and decompression only on
+ * the response handler thread, so neither side needs its own locking.
+ *
+ * If a preset dictionary is given, both sides must use the same one. It helps
+ * most with short bodies that share a lot of text with it (log formats, stack
+ * trace prefixes, ...).
+ *
+ * close() frees the native memory once the connection is closed. Each side
+ * locks its own zlib stream, so closing does not free one that is in use.
+ */
+public class PayloadCompressor {
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    private final int threshold;
+    private final byte[] dictionary;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private byte[] deflateBuffer = new byte[8 * 1024];
+    private final byte[] overrun = new byte[1]; // Inflated into to check a stream ends at its size
+    private boolean deflaterClosed = false; // Guarded by deflater
+    private boolean inflaterClosed = false; // Guarded by inflater
+
+    // Statistics
+    private final AtomicLong packetsCompressed = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong packetsDecompressed = new AtomicLong();
+    private final AtomicLong bytesBeforeDecompression = new AtomicLong();
+    private final AtomicLong bytesAfterDecompression = new AtomicLong();
+
+    public PayloadCompressor(int threshold, byte[] dictionary) {
+        this.threshold = threshold;
+        this.dictionary = dictionary;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /*
+     * Compresses the bytes. Returns the number of compressed bytes, which are
+     * left at the start of getDeflateBuffer, or -1 if compressing would not make
+     * them smaller.
+     */
+    int compress(byte[] bytes) {
+        synchronized (deflater) {
+            return deflaterClosed ? -1 : deflate(bytes);
+        }
+    }
+
+    private int deflate(byte[] bytes) {
+        deflater.reset();
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflateBuffer.length) {
+                if (length >= bytes.length)
+                    return -1; // Not worth it, stop early
+
+                deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+            }
+
+            length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+        }
+
+        if (length >= bytes.length)
+            return -1;
+
+        packetsCompressed.incrementAndGet();
+        bytesBeforeCompression.addAndGet(bytes.length);
+        bytesAfterCompression.addAndGet(length);
+        return length;
+    }
+
+    byte[] getDeflateBuffer() {
+        return deflateBuffer;
+    }
+
+    /*
+     * Rewrites a binary frame (without its length prefix) so that every
+     * compressed parameter becomes a plain string parameter. Returns the frame
+     * unchanged if nothing in it was compressed.
+     *
+     * Throws IllegalArgumentException if the frame is malformed, or if it would
+     * be longer than FrameDecoder.MAX_FRAME_LENGTH once decompressed.
+     */
+    byte[] decompressFrame(byte[] frame) {
+        if (!hasCompressedParameter(frame))
+            return frame;
+
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        ByteBuffer out = ByteBuffer.allocate((int) Math.min(frame.length * 4L, FrameDecoder.MAX_FRAME_LENGTH));
+
+        try {
+            out.put(in.get()); // Command code
+            int parameterCount = in.get() & 0xff;
+            out.put((byte) parameterCount);
+
+            for (int i = 0; i < parameterCount; i++) {
+                byte type = in.get();
+
+                if (type == ClientProtocol.INT_PARAMETER) {
+                    out = ensureRemaining(out, 5);
+                    out.put(type).putInt(in.getInt());
+                } else if (type == ClientProtocol.STRING_PARAMETER) {
+                    int size = in.getInt();
+                    out = ensureRemaining(out, 5 + size);
+                    out.put(type).putInt(size);
+                    out.put(frame, in.position(), size);
+                    in.position(in.position() + size);
+                } else if (type == ClientProtocol.COMPRESSED_PARAMETER) {
+                    int compressedSize = in.getInt();
+                    int size = in.getInt();
+                    if (size < 0 || size > FrameDecoder.MAX_FRAME_LENGTH || compressedSize > in.remaining())
+                        throw new IllegalArgumentException("Invalid compressed parameter size");
+
+                    out = ensureRemaining(out, 5 + size);
+                    out.put(ClientProtocol.STRING_PARAMETER).putInt(size);
+                    inflate(frame, in.position(), compressedSize, out.array(), out.position(), size);
+                    out.position(out.position() + size);
+                    in.position(in.position() + compressedSize);
+                } else {
+                    throw new IllegalArgumentException("Unknown parameter type " + type);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException)
+                throw e;
+            throw new IllegalArgumentException("Malformed compressed frame", e);
+        }
+
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /*
+     * Whether any parameter of the frame is compressed. Only looks at types and
+     * sizes, so it is cheap compared to decompressing.
+     */
+    private boolean hasCompressedParameter(byte[] frame) {
+        if (frame.length < 2)
+            return false;
+
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        in.position(2);
+        int parameterCount = frame[1] & 0xff;
+
+        for (int i = 0; i < parameterCount && in.hasRemaining(); i++) {
+            byte type = in.get();
+
+            if (type == ClientProtocol.COMPRESSED_PARAMETER)
+                return true;
+
+            if (in.remaining() < 4)
+                return false;
+
+            int skip = (type == ClientProtocol.INT_PARAMETER) ? 4 : 4 + in.getInt(in.position());
+            if (skip < 0 || skip > in.remaining())
+                return false;
+
+            in.position(in.position() + skip);
+        }
+
+        return false;
+    }
+
+    /*
+     * Inflates exactly outLength bytes. The stream must end there and use all
+     * of its input.
+     */
+    private void inflate(byte[] in, int offset, int length, byte[] out, int outOffset, int outLength) {
+        synchronized (inflater) {
+            if (inflaterClosed)
+                throw new IllegalArgumentException("Compressor is closed");
+
+            inflater.reset();
+            inflater.setInput(in, offset, length);
+
+            try {
+                int inflated = 0;
+                while (inflated < outLength) {
+                    int n = inflater.inflate(out, outOffset + inflated, outLength - inflated);
+                    if (n == 0 && !setDictionaryIfNeeded())
+                        throw new IllegalArgumentException("Compressed parameter is shorter than its size");
+
+                    inflated += n;
+                }
+
+                // Anything more, even one byte, means the size was wrong
+                while (!inflater.finished()) {
+                    if (inflater.inflate(overrun) > 0)
+                        throw new IllegalArgumentException("Compressed parameter is longer than its size");
+
+                    if (!inflater.finished() && !setDictionaryIfNeeded())
+                        throw new IllegalArgumentException("Compressed parameter is cut short");
+                }
+
+                if (inflater.getRemaining() > 0)
+                    throw new IllegalArgumentException("Compressed parameter has bytes after its end");
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Invalid compressed parameter", e);
+            }
+        }
+
+        packetsDecompressed.incrementAndGet();
+        bytesBeforeDecompression.addAndGet(length);
+        bytesAfterDecompression.addAndGet(outLength);
+    }
+
+    /*
+     * Grows the buffer if needed, but never past MAX_FRAME_LENGTH, so a small
+     * frame cannot inflate into an unbounded one.
+     */
+    /*
+     * Must hold the inflater's lock. Called when inflating made no progress.
+     * Returns false if the stream cannot go on: it needs more input than
+     * there is, or a dictionary we do not have.
+     */
+    private boolean setDictionaryIfNeeded() {
+        if (inflater.needsDictionary() && dictionary != null) {
+            inflater.setDictionary(dictionary);
+            return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Frees the Deflater's and Inflater's native memory. Compressing does
+     * nothing after this, and decompressing fails.
+     */
+    public void close() {
+        synchronized (deflater) {
+            if (!deflaterClosed) {
+                deflaterClosed = true;
+                deflater.end();
+            }
+        }
+
+        synchronized (inflater) {
+            if (!inflaterClosed) {
+                inflaterClosed = true;
+                inflater.end();
+            }
+        }
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes) {
+        long needed = (long) buffer.position() + bytes;
+        if (needed > FrameDecoder.MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("Decompressed frame is longer than " + FrameDecoder.MAX_FRAME_LENGTH);
+
+        if (buffer.remaining() >= bytes)
+            return buffer;
+
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(Math.max(buffer.capacity() * 2L, needed),
+                FrameDecoder.MAX_FRAME_LENGTH));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /*
+     * Statistics
+     */
+
+    public long getPacketsCompressed() {
+        return packetsCompressed.get();
+    }
+
+    public long getPacketsDecompressed() {
+        return packetsDecompressed.get();
+    }
+
+    /*
+     * Bytes that did not have to be sent because of compression.
+     */
+    public long getBytesSavedSending() {
+        return bytesBeforeCompression.get() - bytesAfterCompression.get();
+    }
+
+    /*
+     * Bytes that did not have to be received because of compression.
+     */
+    public long getBytesSavedReceiving() {
+        return bytesAfterDecompression.get() - bytesBeforeDecompression.get();
+    }
+}
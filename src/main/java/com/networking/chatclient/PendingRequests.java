@@ -0,0 +1,149 @@
+package com.networking.chatclient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.networking.chatclient.ServerProtocol.ServerCommand;
+
+/*
+ * Matches responses from the server to the requests that are waiting for them.
+ *
+ * A request is registered under the response it expects: the command, and the
+ * group and message ids the response will carry (NO_ID when the response does
+ * not have one). The request is only sent after it has been registered, so a
+ * response can never arrive before anyone is waiting for it. When the response
+ * arrives, the response handler completes the request's future.
+ *
+ * If the same response is already being waited for, the existing future is
+ * shared and nothing is sent again.
+ */
+public class PendingRequests {
+    static final int NO_ID = Integer.MIN_VALUE;
+    static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    /*
+     * The response a request is waiting for.
+     */
+    private static final class Key {
+        final ServerCommand command;
+        final int groupId;
+        final int messageId;
+
+        Key(ServerCommand command, int groupId, int messageId) {
+            this.command = command;
+            this.groupId = groupId;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return command == other.command && groupId == other.groupId && messageId == other.messageId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (command.ordinal() * 31 + groupId) * 31 + messageId;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, CompletableFuture<Object>> pending = new ConcurrentHashMap<Key, CompletableFuture<Object>>();
+
+    // Statistics
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /*
+     * Returns a future that completes with the value of the matching response,
+     * or with a TimeoutException after timeoutMillis. send is run only if no
+     * one was already waiting for that response. If send throws, the future
+     * completes with its exception.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> register(ServerCommand command, int groupId, int messageId, long timeoutMillis,
+            Runnable send) {
+        Key key = new Key(command, groupId, messageId);
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        CompletableFuture<Object> existing = pending.putIfAbsent(key, future);
+
+        if (existing != null) {
+            shared.incrementAndGet();
+            return (CompletableFuture<T>) existing;
+        }
+
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((value, e) -> {
+            pending.remove(key, future);
+
+            if (e instanceof TimeoutException)
+                timedOut.incrementAndGet();
+        });
+
+        try {
+            send.run();
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+
+        return (CompletableFuture<T>) future;
+    }
+
+    /*
+     * Whether a request is waiting for this response.
+     */
+    public boolean isPending(ServerCommand command, int groupId, int messageId) {
+        return pending.containsKey(new Key(command, groupId, messageId));
+    }
+
+    /*
+     * Completes whatever is waiting for this response. Returns false if nothing
+     * was.
+     */
+    public boolean complete(ServerCommand command, int groupId, int messageId, Object value) {
+        CompletableFuture<Object> future = pending.remove(new Key(command, groupId, messageId));
+
+        if (future == null)
+            return false;
+
+        completed.incrementAndGet();
+        return future.complete(value);
+    }
+
+    /*
+     * Fails every waiting request, for example because the connection closed.
+     */
+    public void failAll(Throwable cause) {
+        for (CompletableFuture<Object> future : pending.values()) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /*
+     * Statistics
+     */
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /*
+     * How many requests were not sent because the same one was in flight.
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+}
@@ -0,0 +1,136 @@
+package com.networking.chatclient;
+
+import java.text.ParsePosition;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAccessor;
+
+/*
+ * Parses the post dates the server sends into microseconds since the epoch,
+ * and formats them back the same way, so labels can keep a long instead of a
+ * String.
+ *
+ * The server's dates have no time zone, so they are read as UTC; only the
+ * order and the text matter. A date is only parsed if formatting it again gives
+ * back exactly the same text. Otherwise the text is kept as it is.
+ *
+ * Parsing reads the fields with a ParsePosition and checks them itself, so a
+ * date that is not in a format never throws, and none is parsed twice. One of
+ * these is made per connection: a server always uses the same format, so the
+ * one that matched last is tried first.
+ *
+ * parse returns a stamp: the microseconds shifted left by FORMAT_BITS, with the
+ * format's index in the low bits, or UNPARSED_STAMP.
+ */
+final class PostDate {
+    static final byte UNPARSED = -1;
+    static final long UNPARSED_STAMP = Long.MIN_VALUE;
+    static final int FORMAT_BITS = 3;
+
+    private static final DateTimeFormatter[] FORMATS = {
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"),
+    };
+
+    private static final LocalDateTime EPOCH = LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC);
+    private static final int[] LENGTHS = lengths(); // Every format has a fixed length for 4 digit years
+
+    private volatile byte lastFormat = 0;
+
+    private static int[] lengths() {
+        int[] lengths = new int[FORMATS.length];
+        for (int i = 0; i < FORMATS.length; i++) {
+            lengths[i] = FORMATS[i].format(EPOCH).length();
+        }
+
+        return lengths;
+    }
+
+    /*
+     * Returns the text's stamp, or UNPARSED_STAMP if it is in none of the
+     * formats.
+     */
+    long parse(String text) {
+        byte last = lastFormat;
+        long stamp = parse(text, last);
+        if (stamp != UNPARSED_STAMP)
+            return stamp;
+
+        for (byte i = 0; i < FORMATS.length; i++) {
+            if (i == last)
+                continue;
+
+            stamp = parse(text, i);
+            if (stamp != UNPARSED_STAMP) {
+                lastFormat = i;
+                return stamp;
+            }
+        }
+
+        return UNPARSED_STAMP;
+    }
+
+    /*
+     * The text's stamp if it is exactly in the given format, or
+     * UNPARSED_STAMP.
+     */
+    private static long parse(String text, byte format) {
+        if (text.length() != LENGTHS[format])
+            return UNPARSED_STAMP;
+
+        ParsePosition position = new ParsePosition(0);
+        TemporalAccessor fields = FORMATS[format].parseUnresolved(text, position);
+        if (fields == null || position.getErrorIndex() >= 0 || position.getIndex() != text.length())
+            return UNPARSED_STAMP;
+
+        long year = get(fields, ChronoField.YEAR_OF_ERA);
+        long month = get(fields, ChronoField.MONTH_OF_YEAR);
+        long day = get(fields, ChronoField.DAY_OF_MONTH);
+        long hour = get(fields, ChronoField.HOUR_OF_DAY);
+        long minute = get(fields, ChronoField.MINUTE_OF_HOUR);
+        long second = get(fields, ChronoField.SECOND_OF_MINUTE);
+        long nanos = get(fields, ChronoField.NANO_OF_SECOND);
+
+        if (year < 1 || year > 9999 || month < 1 || month > 12 || day < 1
+                || day > Month.of((int) month).length(Year.isLeap(year)) || hour > 23 || minute > 59
+                || second > 59)
+            return UNPARSED_STAMP;
+
+        long days = LocalDate.of((int) year, (int) month, (int) day).toEpochDay();
+        long micros = ((days * 24 + hour) * 60 + minute) * 60_000_000 + second * 1_000_000 + nanos / 1000;
+        return (micros << FORMAT_BITS) | format;
+    }
+
+    /*
+     * The field's value, or 0 if the format does not have it.
+     */
+    private static long get(TemporalAccessor fields, ChronoField field) {
+        return fields.isSupported(field) ? fields.getLong(field) : 0;
+    }
+
+    /*
+     * Microseconds since the epoch. The stamp must not be UNPARSED_STAMP.
+     */
+    static long getMicros(long stamp) {
+        return stamp >> FORMAT_BITS;
+    }
+
+    static byte getFormat(long stamp) {
+        return (stamp != UNPARSED_STAMP) ? (byte) (stamp & ((1 << FORMAT_BITS) - 1)) : UNPARSED;
+    }
+
+    static String format(long micros, byte format) {
+        return FORMATS[format].format(EPOCH.plus(micros, ChronoUnit.MICROS));
+    }
+}
@@ -2,6 +2,7 @@ package com.networking.chatclient;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /*
@@ -17,15 +18,27 @@ public class ProtocolPacket {
     final static String END = "\0";
     protected String command = "";
     protected ArrayList<String> parameters = new ArrayList<String>();
+    protected long intParameters = 0; // Bit i is set if parameter i was added as an Integer
 
     protected void setCommand(String command) {
         this.command = command;
     }
 
     protected void addParameter(Object parameter) {
+        if (parameter instanceof Integer && parameters.size() < Long.SIZE)
+            intParameters |= 1L << parameters.size();
+
         this.parameters.add(parameter.toString());
     }
 
+    /*
+     * Whether a parameter was added as an Integer, so it can be sent as one in
+     * binary frames.
+     */
+    public boolean isIntParameter(int index) {
+        return index < Long.SIZE && (intParameters & (1L << index)) != 0;
+    }
+
     public String getCommand() {
         return command;
     }
@@ -49,12 +62,22 @@ public class ProtocolPacket {
         return packetBuilder.toString();
     }
 
+    /*
+     * Send this packet through the writer.
+     */
+    public void send(PacketWriter writer) {
+        writer.send(this);
+    }
+
     /*
      * Send this packet through the outputStream.
+     *
+     * Prefer send(PacketWriter), which batches packets into fewer writes.
      */
     public void send(DataOutputStream outputStream) {
         try {
-            outputStream.writeBytes(getContent());
+            outputStream.write(getContent().getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,340 @@
+package com.networking.chatclient;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.networking.chatclient.ServerProtocol.ServerCommand;
+
+/*
+ * A packet received from the server, parsed in place.
+ *
+ * The frame is walked once to find where each line starts and ends (already
+ * trimmed). Nothing else is created up front: parameters are only turned into
+ * Strings when getParameter is called, and ids can be read with
+ * getIntParameter without creating a String at all.
+ *
+ * Line 0 is the command and lines 1.. are the parameters, the same layout as
+ * ProtocolPacket. toPacket converts to a ProtocolPacket for code that needs one.
+ *
+ * Binary frames (see ClientProtocol.FramingMode) are parsed the same way, with
+ * each parameter's bytes as its line. Their command is known from its code, and
+ * int parameters are read directly as 4 bytes.
+ *
+ * Parsing a ByteBuffer copies the frame's bytes once, out of the
+ * FrameDecoder's buffer. The copy is kept on purpose: frames are handled later
+ * on a dispatch lane, after the decoder has already reused its buffer for the
+ * next read, so a frame cannot point into it. It is the only copy; lines are
+ * read from it in place.
+ */
+public class ResponseFrame {
+    private static final byte[] CRLF = ProtocolPacket.CRLF.getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] bytes;
+    private final int length;
+
+    // Trimmed bounds of each line
+    private int[] lineStarts = new int[8];
+    private int[] lineEnds = new int[8];
+    private int lineCount = 0;
+
+    private String[] lines; // Lines that have already been turned into Strings
+
+    // Only set for binary frames
+    private byte[] lineTypes; // The parameter type of each line
+    private ServerCommand binaryCommand;
+
+    private ResponseFrame(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+        findLines();
+        lines = new String[lineCount];
+    }
+
+    private ResponseFrame(byte[] bytes, int length, boolean binary) {
+        this.bytes = bytes;
+        this.length = length;
+        readBinaryParameters();
+        lines = new String[lineCount];
+        lines[0] = (binaryCommand != null) ? binaryCommand.name() : "";
+    }
+
+    /*
+     * Parses the remaining bytes of the buffer. The bytes are copied (see
+     * above), so the buffer can be reused as soon as this returns.
+     */
+    public static ResponseFrame parse(ByteBuffer frame) {
+        int length = frame.remaining();
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return new ResponseFrame(bytes, length);
+    }
+
+    /*
+     * Parses the remaining bytes of the buffer as a binary frame, without its
+     * length prefix. The bytes are copied.
+     *
+     * Throws IllegalArgumentException if the frame is malformed.
+     */
+    public static ResponseFrame parseBinary(ByteBuffer frame) {
+        return parseBinary(frame, null);
+    }
+
+    /*
+     * Parses a binary frame that may contain compressed parameters. They are
+     * decompressed right away, so compressor is only used during this call.
+     */
+    public static ResponseFrame parseBinary(ByteBuffer frame, PayloadCompressor compressor) {
+        int length = frame.remaining();
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+
+        if (compressor != null) {
+            bytes = compressor.decompressFrame(bytes);
+            length = bytes.length;
+        }
+
+        return new ResponseFrame(bytes, length, true);
+    }
+
+    public static ResponseFrame parse(String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        return new ResponseFrame(bytes, bytes.length);
+    }
+
+    public static ResponseFrame fromPacket(ProtocolPacket packet) {
+        String content = packet.getContent();
+        return parse(content.substring(0, content.length() - ProtocolPacket.END.length()));
+    }
+
+    /*
+     * Splits the frame into lines on CRLF, in one pass.
+     *
+     * Matches String.split: empty lines at the end of the frame are dropped.
+     */
+    private void findLines() {
+        int lastNonEmptyLine = 0;
+        int lineStart = 0;
+        int i = 0;
+        while (i <= length) {
+            if (i < length && !isCrlfAt(i)) {
+                i++;
+                continue;
+            }
+
+            if (i > lineStart)
+                lastNonEmptyLine = lineCount;
+
+            addLine(lineStart, i);
+
+            i += CRLF.length;
+            lineStart = i;
+        }
+
+        lineCount = lastNonEmptyLine + 1; // Always keeps the command
+    }
+
+    /*
+     * Records where each parameter of a binary frame is.
+     */
+    private void readBinaryParameters() {
+        if (length < 2)
+            throw new IllegalArgumentException("Binary frame too short");
+
+        binaryCommand = ServerProtocol.getServerCommand(bytes[0]);
+        int parameterCount = bytes[1] & 0xff;
+        lineTypes = new byte[parameterCount + 1];
+
+        addLine(0, 0); // The command has no text
+
+        int offset = 2;
+        for (int i = 0; i < parameterCount; i++) {
+            if (offset >= length)
+                throw new IllegalArgumentException("Binary frame too short");
+
+            byte type = bytes[offset++];
+            int size;
+
+            if (type == ClientProtocol.INT_PARAMETER) {
+                size = 4;
+            } else if (type == ClientProtocol.STRING_PARAMETER) {
+                if (offset + 4 > length)
+                    throw new IllegalArgumentException("Binary frame too short");
+
+                size = readInt(offset);
+                offset += 4;
+            } else {
+                throw new IllegalArgumentException("Unknown parameter type " + type);
+            }
+
+            if (size < 0 || offset + size > length)
+                throw new IllegalArgumentException("Binary frame too short");
+
+            if (lineCount == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+            }
+
+            lineStarts[lineCount] = offset;
+            lineEnds[lineCount] = offset + size;
+            lineTypes[lineCount] = type;
+            lineCount++;
+
+            offset += size;
+        }
+    }
+
+    private int readInt(int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private boolean isIntLine(int line) {
+        return lineTypes != null && lineTypes[line] == ClientProtocol.INT_PARAMETER;
+    }
+
+    private boolean isCrlfAt(int offset) {
+        if (offset + CRLF.length > length)
+            return false;
+
+        for (int j = 0; j < CRLF.length; j++) {
+            if (bytes[offset + j] != CRLF[j])
+                return false;
+        }
+
+        return true;
+    }
+
+    private void addLine(int start, int end) {
+        while (start < end && (bytes[start] & 0xff) <= ' ')
+            start++;
+        while (end > start && (bytes[end - 1] & 0xff) <= ' ')
+            end--;
+
+        if (lineCount == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+            lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+        }
+
+        lineStarts[lineCount] = start;
+        lineEnds[lineCount] = end;
+        lineCount++;
+    }
+
+    /*
+     * Accessors
+     */
+
+    public String getCommand() {
+        return getLine(0);
+    }
+
+    /*
+     * The command of a binary frame, or null for text frames and unknown codes.
+     */
+    public ServerCommand getBinaryCommand() {
+        return binaryCommand;
+    }
+
+    public int getParameterCount() {
+        return lineCount - 1;
+    }
+
+    public String getParameter(int index) {
+        return getLine(index + 1);
+    }
+
+    /*
+     * Reads a parameter as an int straight from the frame.
+     *
+     * Throws NumberFormatException if the parameter is not an int, like
+     * Integer.parseInt.
+     */
+    public int getIntParameter(int index) {
+        int line = index + 1;
+        checkLine(line);
+
+        if (isIntLine(line))
+            return readInt(lineStarts[line]);
+
+        int start = lineStarts[line];
+        int end = lineEnds[line];
+
+        boolean negative = start < end && bytes[start] == '-';
+        int i = negative ? start + 1 : start;
+
+        // Anything unusual (empty, non-digit, possible overflow) goes through Integer.parseInt
+        if (i == end || end - i > 9)
+            return Integer.parseInt(getParameter(index));
+
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                return Integer.parseInt(getParameter(index));
+
+            value = value * 10 + digit;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /*
+     * Whether a parameter is exactly "1", the protocol's true value.
+     */
+    public boolean getFlagParameter(int index) {
+        int line = index + 1;
+        checkLine(line);
+
+        if (isIntLine(line))
+            return readInt(lineStarts[line]) == 1;
+
+        return lineEnds[line] - lineStarts[line] == 1 && bytes[lineStarts[line]] == '1';
+    }
+
+    /*
+     * Raw access to a line's bytes, for lookups that should not create a String.
+     */
+    int getLineLength(int line) {
+        checkLine(line);
+        return lineEnds[line] - lineStarts[line];
+    }
+
+    byte getLineByte(int line, int index) {
+        return bytes[lineStarts[line] + index];
+    }
+
+    /*
+     * Converts the frame to a ProtocolPacket, creating every String.
+     */
+    public ProtocolPacket toPacket() {
+        ProtocolPacket packet = new ProtocolPacket();
+        packet.setCommand(getCommand());
+
+        for (int i = 0; i < getParameterCount(); i++) {
+            packet.addParameter(getParameter(i));
+        }
+
+        return packet;
+    }
+
+    private String getLine(int line) {
+        checkLine(line);
+
+        String s = lines[line];
+        if (s == null && isIntLine(line)) {
+            s = Integer.toString(readInt(lineStarts[line]));
+            lines[line] = s;
+        } else if (s == null) {
+            s = new String(bytes, lineStarts[line], lineEnds[line] - lineStarts[line], StandardCharsets.UTF_8);
+            lines[line] = s;
+        }
+
+        return s;
+    }
+
+    private void checkLine(int line) {
+        if (line < 0 || line >= lineCount)
+            throw new IndexOutOfBoundsException("Line " + line + " out of bounds for frame with " + lineCount + " lines");
+    }
+}
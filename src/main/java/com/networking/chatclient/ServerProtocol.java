@@ -1,47 +1,157 @@
 package com.networking.chatclient;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /*
  * A namespace for types and functions for decoding server messages
  */
 public final class ServerProtocol {
 
     public enum ServerCommand {
-        VERIFY_USERNAME(1),
-        USER_JOIN_NOTIF(2),
-        USER_LEAVE_NOTIF(2),
-        SEND_MESSAGE_LABEL(5),
-        SEND_USER_LIST(1),
-        SEND_GROUPS_LIST(2),
-        SEND_MESSAGE_CONTENT(3),
-        BAD_MESSAGE(0);
+        VERIFY_USERNAME(1, 1),
+        USER_JOIN_NOTIF(2, 2),
+        USER_LEAVE_NOTIF(3, 2),
+        SEND_MESSAGE_LABEL(4, 5),
+        SEND_USER_LIST(5, 1),
+        SEND_GROUPS_LIST(6, 2),
+        SEND_MESSAGE_CONTENT(7, 3),
+        BAD_MESSAGE(8, 0),
+        FRAMING_ACK(9, 1); // Answer to a FRAMING request, handled by the response handler thread
 
+        byte code; // Used by binary frames
         int minParameters;
 
-        ServerCommand(int minParameters) {
+        ServerCommand(int code, int minParameters) {
+            this.code = (byte) code;
             this.minParameters = minParameters;
         }
     }
 
+    /*
+     * Parses a frame from the FrameDecoder's buffer, copying its bytes once so
+     * it can outlive the buffer.
+     */
+    public static ResponseFrame parseFrame(ByteBuffer frame) {
+        return ResponseFrame.parse(frame);
+    }
+
+    /*
+     * Parses a frame in the given mode. compressor may be null if compression
+     * is not in use.
+     */
+    public static ResponseFrame parseFrame(ByteBuffer frame, ClientProtocol.FramingMode mode,
+            PayloadCompressor compressor) {
+        if (mode == ClientProtocol.FramingMode.BINARY)
+            return ResponseFrame.parseBinary(frame, compressor);
+
+        return ResponseFrame.parse(frame);
+    }
+
     public static ProtocolPacket parseResponse(String str) {
-        ProtocolPacket packet = new ProtocolPacket();
+        return ResponseFrame.parse(str).toPacket();
+    }
+
+    public static ProtocolPacket parseResponse(ByteBuffer frame) {
+        return ResponseFrame.parse(frame).toPacket();
+    }
+
+    /*
+     * Command lookup table
+     *
+     * Commands are grouped by length, and then by first character, when the
+     * class loads. Looking a command up only compares it against the few
+     * commands that share its length and first character, and creates nothing.
+     */
+
+    private static final ServerCommand[] commandsByCode = new ServerCommand[256];
+    private static final ServerCommand[][] commandsByLength;
+    private static final byte[][] commandNames; // Indexed by ordinal
+
+    static {
+        ServerCommand[] commands = ServerCommand.values();
+        commandNames = new byte[commands.length][];
+
+        int maxLength = 0;
+        for (ServerCommand command : commands) {
+            commandsByCode[command.code & 0xff] = command;
+            commandNames[command.ordinal()] = command.name().getBytes(StandardCharsets.US_ASCII);
+            maxLength = Math.max(maxLength, command.name().length());
+        }
 
-        String[] lines = str.split(ProtocolPacket.CRLF);
+        commandsByLength = new ServerCommand[maxLength + 1][];
+        for (ServerCommand command : commands) {
+            int length = command.name().length();
+            ServerCommand[] sameLength = commandsByLength[length];
 
-        packet.setCommand(lines[0].trim());
+            if (sameLength == null) {
+                sameLength = new ServerCommand[] { command };
+            } else {
+                sameLength = Arrays.copyOf(sameLength, sameLength.length + 1);
+                sameLength[sameLength.length - 1] = command;
+            }
 
-        for (int i = 1; i < lines.length; i++) {
-            packet.addParameter(lines[i].trim());
+            commandsByLength[length] = sameLength;
         }
+    }
+
+    /*
+     * Returns the frame's command, or null if it is unknown.
+     */
+    public static ServerCommand getServerCommand(ResponseFrame frame) {
+        if (frame.getBinaryCommand() != null)
+            return frame.getBinaryCommand();
+
+        int length = frame.getLineLength(0);
+
+        if (length > 0 && length < commandsByLength.length && commandsByLength[length] != null) {
+            byte first = frame.getLineByte(0, 0);
+
+            for (ServerCommand command : commandsByLength[length]) {
+                byte[] name = commandNames[command.ordinal()];
+                if (name[0] != first)
+                    continue;
+
+                int i = 1;
+                while (i < length && name[i] == frame.getLineByte(0, i))
+                    i++;
+
+                if (i == length)
+                    return command;
+            }
+        }
+
+        return null;
+    }
 
-        return packet;
+    /*
+     * Returns the command with the given binary code, or null if there is none.
+     */
+    public static ServerCommand getServerCommand(byte code) {
+        return commandsByCode[code & 0xff];
     }
 
+    /*
+     * Returns the packet's command, or null if it is unknown.
+     */
     public static ServerCommand getServerCommand(ProtocolPacket packet) {
-        try {
-            return ServerCommand.valueOf(packet.getCommand());
-        } catch (IllegalArgumentException e) {
-            System.out.println("Invalid Server Command");
-            return null;
+        String commandName = packet.getCommand();
+        int length = commandName.length();
+
+        if (length > 0 && length < commandsByLength.length && commandsByLength[length] != null) {
+            for (ServerCommand command : commandsByLength[length]) {
+                byte[] name = commandNames[command.ordinal()];
+
+                int i = 0;
+                while (i < length && name[i] == commandName.charAt(i))
+                    i++;
+
+                if (i == length)
+                    return command;
+            }
         }
+
+        return null;
     }
 }
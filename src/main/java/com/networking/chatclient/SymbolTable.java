@@ -0,0 +1,54 @@
+package com.networking.chatclient;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Gives every distinct string (such as a username) one shared instance and a
+ * small int id, so thousands of labels from the same few users do not each
+ * keep their own copy.
+ *
+ * Ids are handed out from 0 in the order strings are first seen. Interning
+ * takes a lock; looking up a string by id does not.
+ */
+public class SymbolTable {
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private volatile String[] symbols = new String[64]; // Rewritten after every intern, to publish the new slot
+    private int size = 0;
+
+    /*
+     * Returns the id of the string, adding it if it is new.
+     */
+    public synchronized int intern(String s) {
+        Integer id = ids.get(s);
+        if (id != null)
+            return id;
+
+        String[] symbols = this.symbols;
+        if (size == symbols.length)
+            symbols = Arrays.copyOf(symbols, size * 2);
+
+        symbols[size] = s;
+        ids.put(s, size);
+        this.symbols = symbols;
+        return size++;
+    }
+
+    /*
+     * Returns the shared instance of the string, adding it if it is new.
+     */
+    public String canonical(String s) {
+        return get(intern(s));
+    }
+
+    /*
+     * The string with the given id.
+     */
+    public String get(int id) {
+        return symbols[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}